@@ -1,6 +1,24 @@
 package lox;
 
-public class AstPrinter implements Expr.Visitor<String> {
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public class AstPrinter implements Expr.Visitor<String>, ExprArena.Visitor<String> {
+
+    //how much rendered text is held before it is handed to the sink
+    private static final int CHUNK = 8192;
+
+    //every rendering is appended to this one builder, which is reused from call to call
+    private final StringBuilder builder = new StringBuilder();
+    //render()'s work stack, reused the same way
+    private final Deque<Object> work = new ArrayDeque<>();
+    //the arena whose nodes are being rendered, the work stack holds them as Integers
+    private ExprArena arena;
+    //where full chunks go when printing to an Appendable, null when rendering to a String
+    private Appendable sink;
+    private final DoubleFormatter numbers = new DoubleFormatter();
 
     /**
      * Fun being called by the AST tree
@@ -8,53 +26,137 @@ public class AstPrinter implements Expr.Visitor<String> {
      * @return a String representation of the Expression
      */
     String print(Expr expr){
-        return expr.accept(this);
+        begin(null);
+        render(expr, false);
+        return builder.toString();
     }
     String RPN(Expr expr){
-        return expr.RPN(this);
+        begin(null);
+        render(expr, true);
+        return builder.toString();
+    }
+
+    /**
+     * the same renderings streamed to out a chunk at a time, so the text of a huge tree is never all in memory
+     */
+    void print(Expr expr, Appendable out){
+        begin(out);
+        render(expr, false);
+        end();
+    }
+    void RPN(Expr expr, Appendable out){
+        begin(out);
+        render(expr, true);
+        end();
+    }
+
+    /**
+     * the two renderings of a SealedExpr, matched on record type instead of visited
+     */
+    String print(SealedExpr expr){
+        begin(null);
+        render(expr, false);
+        return builder.toString();
+    }
+    String RPN(SealedExpr expr){
+        begin(null);
+        render(expr, true);
+        return builder.toString();
+    }
+    void print(SealedExpr expr, Appendable out){
+        begin(out);
+        render(expr, false);
+        end();
+    }
+    void RPN(SealedExpr expr, Appendable out){
+        begin(out);
+        render(expr, true);
+        end();
+    }
+
+    String print(ExprArena arena, int root){
+        begin(null);
+        render(arena, root, false);
+        return builder.toString();
+    }
+    String RPN(ExprArena arena, int root){
+        begin(null);
+        render(arena, root, true);
+        return builder.toString();
+    }
+    void print(ExprArena arena, int root, Appendable out){
+        begin(out);
+        render(arena, root, false);
+        end();
+    }
+    void RPN(ExprArena arena, int root, Appendable out){
+        begin(out);
+        render(arena, root, true);
+        end();
     }
 
+    private void begin(Appendable out){
+        builder.setLength(0);
+        sink = out;
+    }
+
+    private void end(){
+        flush();
+        sink = null;
+    }
+
+    /**
+     * hands what has been rendered so far to the sink once there is a chunk of it
+     */
+    private void flushIfFull(){
+        if(sink != null && builder.length() >= CHUNK){
+            flush();
+        }
+    }
+
+    private void flush(){
+        try{
+            sink.append(builder);
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        builder.setLength(0);
+    }
+
+    private void literal(Object value){
+        if(value instanceof Double number){
+            //straight into the builder, without the .0 of an integral value like the interpreter prints it
+            numbers.append(builder, number, true);
+        }else {
+            builder.append(value == null ? "nil" : value.toString());
+        }
+    }
+
+
     /**
-     * fun set deals with printing gets called by the expression's accept() fun
+     * fun set deals with printing gets called by the expression's accept() fun, each renders its whole subtree
      * @param expr the expression calling the fun
      * @return a string to print
      */
     @Override
     public String visitBinaryExpr(Expr.Binary expr){
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return print(expr);
     }
     @Override
     public String visitTernaryExpr(Expr.Ternary expr){
-        return "("+expr.condition.accept(this) +") "+ expr.first.lexeme +" ("+ expr.left.accept(this)+ ") "+
-                expr.second.lexeme +" ("+ expr.right.accept(this)+")";
+        return print(expr);
     }
     @Override
     public String visitGroupingExpr(Expr.Grouping expr){
-        return parenthesize("group", expr.expression);
+        return print(expr);
     }
     @Override
     public String visitUnaryExpr(Expr.Unary expr){
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return print(expr);
     }
     @Override
     public String visitLiteralExpr(Expr.Literal expr){
-        return expr==null? "nil": expr.value.toString();
-    }
-    private String parenthesize(String operator, Expr... exprs){
-        StringBuilder builder = new StringBuilder();
-
-        builder.append("( ");
-        builder.append(operator);
-
-        for(Expr expr : exprs){
-            builder.append(" ");
-            //this allows for recursion, so we append the node's children as well
-            builder.append(expr.accept(this));
-        }
-
-        builder.append(" )");
-
-        return builder.toString();
+        return print(expr);
     }
 
 
@@ -64,31 +166,179 @@ public class AstPrinter implements Expr.Visitor<String> {
      * @return a string to print
      */
     public String BinaryRPN(Expr.Binary expr){
-        return RPN_reformat(expr.operator.lexeme, expr.left, expr.right);
+        return RPN(expr);
     }
     public String UnaryRPN(Expr.Unary expr){
-        return RPN_reformat(expr.operator.lexeme, expr.right);
+        return RPN(expr);
     }
     public String LiteralRPN(Expr.Literal expr){
-        return expr.value.toString();
+        return RPN(expr);
     }
     public String TernaryRPN(Expr.Ternary expr){
-        return "("+expr.condition.RPN(this) +") "+ expr.first.lexeme +" ("+ expr.left.RPN(this)+ ") "+
-                expr.second.lexeme +" ("+ expr.right.RPN(this)+")";
+        return RPN(expr);
     }
     public String GroupingRPN(Expr.Grouping expr){
-        return RPN_reformat("", expr.expression);
+        return RPN(expr);
+    }
+
+    /**
+     * renders a tree without recursing, so deeply nested expressions and long operator chains only need heap. The
+     * work stack holds the nodes still to render and the text between them, pushed in reverse so they pop in output
+     * order. Expr, SealedExpr and arena nodes are laid out the same way
+     * @param rpn whether to render in RPN instead of prefix
+     */
+    private void render(Object root, boolean rpn){
+        //left over if the last rendering failed to write
+        work.clear();
+        work.push(root);
+
+        while(!work.isEmpty()){
+            Object item = work.pop();
+            if(item instanceof String text){
+                builder.append(text);
+            }else if(item instanceof Expr expr){
+                expand(expr, rpn);
+            }else if(item instanceof SealedExpr expr){
+                expand(expr, rpn);
+            }else {
+                expand((int) item, rpn);
+            }
+            flushIfFull();
+        }
     }
-    private String RPN_reformat(String operator, Expr... exprs){
 
-        StringBuilder builder = new StringBuilder();
+    private void render(ExprArena arena, int root, boolean rpn){
+        this.arena = arena;
+        try{
+            render((Integer) root, rpn);
+        }finally {
+            this.arena = null;
+        }
+    }
 
-        for(Expr expr : exprs){
-            builder.append(expr.RPN(this)).append(" ");
+    private void expand(Expr expr, boolean rpn){
+        if(expr instanceof Expr.Binary binary){
+            binary(binary.left, binary.operator, binary.right, rpn);
+        }else if(expr instanceof Expr.Ternary ternary){
+            ternary(ternary.condition, ternary.first, ternary.left, ternary.second, ternary.right);
+        }else if(expr instanceof Expr.Grouping grouping){
+            grouping(grouping.expression, rpn);
+        }else if(expr instanceof Expr.Unary unary){
+            unary(unary.operator, unary.right, rpn);
+        }else {
+            literal(((Expr.Literal) expr).value);
         }
+    }
 
-        builder.append(operator);
-        return builder.toString();
+    private void expand(SealedExpr expr, boolean rpn){
+        if(expr instanceof SealedExpr.Binary binary){
+            binary(binary.left(), binary.operator(), binary.right(), rpn);
+        }else if(expr instanceof SealedExpr.Ternary ternary){
+            ternary(ternary.condition(), ternary.first(), ternary.left(), ternary.second(), ternary.right());
+        }else if(expr instanceof SealedExpr.Grouping grouping){
+            grouping(grouping.expression(), rpn);
+        }else if(expr instanceof SealedExpr.Unary unary){
+            unary(unary.operator(), unary.right(), rpn);
+        }else if(expr instanceof SealedExpr.Literal literal){
+            literal(literal.value());
+        }else {
+            throw new IllegalStateException("unknown node " + expr);
+        }
+    }
+
+    private void expand(int node, boolean rpn){
+        switch (arena.kind(node)){
+            case ExprArena.BINARY ->
+                    binary(arena.binaryLeft(node), arena.binaryOperator(node), arena.binaryRight(node), rpn);
+            case ExprArena.TERNARY -> ternary(arena.ternaryCondition(node), arena.ternaryFirst(node),
+                    arena.ternaryLeft(node), arena.ternarySecond(node), arena.ternaryRight(node));
+            case ExprArena.GROUPING -> grouping(arena.groupingExpression(node), rpn);
+            case ExprArena.UNARY -> unary(arena.unaryOperator(node), arena.unaryRight(node), rpn);
+            default -> literal(arena.literalValue(node));
+        }
+    }
+
+    /**
+     * the layout of each kind of node, its operands are whatever render() takes for a node
+     */
+    private void binary(Object left, Token operator, Object right, boolean rpn){
+        if(rpn){
+            push(work, left, " ", right, " ", operator.lexeme());
+        }else {
+            push(work, "( ", operator.lexeme(), " ", left, " ", right, " )");
+        }
+    }
+
+    private void ternary(Object condition, Token first, Object left, Token second, Object right){
+        push(work, "(", condition, ") ", first.lexeme(), " (", left, ") ", second.lexeme(), " (", right, ")");
+    }
+
+    private void grouping(Object expression, boolean rpn){
+        if(rpn){
+            push(work, expression, " ");
+        }else {
+            push(work, "( group ", expression, " )");
+        }
+    }
+
+    private void unary(Token operator, Object right, boolean rpn){
+        if(rpn){
+            push(work, right, " ", operator.lexeme());
+        }else {
+            push(work, "( ", operator.lexeme(), " ", right, " )");
+        }
+    }
+
+    private static void push(Deque<Object> work, Object... items){
+        for(int i = items.length - 1; i >= 0; i--){
+            work.push(items[i]);
+        }
+    }
+
+
+    /**
+     * the same two renderings over a flat ExprArena
+     */
+    @Override
+    public String visitBinaryNode(ExprArena arena, int node){
+        return print(arena, node);
+    }
+    @Override
+    public String visitTernaryNode(ExprArena arena, int node){
+        return print(arena, node);
+    }
+    @Override
+    public String visitGroupingNode(ExprArena arena, int node){
+        return print(arena, node);
+    }
+    @Override
+    public String visitUnaryNode(ExprArena arena, int node){
+        return print(arena, node);
+    }
+    @Override
+    public String visitLiteralNode(ExprArena arena, int node){
+        return print(arena, node);
+    }
+
+    @Override
+    public String BinaryNodeRPN(ExprArena arena, int node){
+        return RPN(arena, node);
+    }
+    @Override
+    public String UnaryNodeRPN(ExprArena arena, int node){
+        return RPN(arena, node);
+    }
+    @Override
+    public String LiteralNodeRPN(ExprArena arena, int node){
+        return RPN(arena, node);
+    }
+    @Override
+    public String TernaryNodeRPN(ExprArena arena, int node){
+        return RPN(arena, node);
+    }
+    @Override
+    public String GroupingNodeRPN(ExprArena arena, int node){
+        return RPN(arena, node);
     }
 
 
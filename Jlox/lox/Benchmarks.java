@@ -0,0 +1,482 @@
+package lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Micro benchmarks for the hot paths of the interpreter, run with the name of a suite: java lox.Benchmarks keywords
+ */
+public class Benchmarks {
+
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 20;
+
+    //keeps the JIT from throwing the measured work away
+    private static long sink;
+
+    public static void main(String[] args){
+        if(args.length != 1){
+            System.out.println("Usage: benchmarks <suite>");
+            System.exit(64);
+        }
+
+        switch (args[0]){
+            case "keywords" -> keywords();
+            case "numbers" -> numbers();
+            case "parse" -> parse();
+            case "dispatch" -> dispatch();
+            case "vm" -> vm();
+            case "sharing" -> sharing();
+            case "print" -> print();
+            case "format" -> format();
+            case "strings" -> strings();
+            case "cache" -> cache();
+            default -> {
+                System.out.println("Unknown suite: " + args[0]);
+                System.exit(64);
+            }
+        }
+    }
+
+    /**
+     * runs body a few times to warm up the JIT, then reports the average time of a round
+     */
+    private static void time(String name, Runnable body){
+        for(int i = 0; i < WARMUP_ROUNDS; i++){
+            body.run();
+        }
+
+        long begin = System.nanoTime();
+        for(int i = 0; i < ROUNDS; i++){
+            body.run();
+        }
+        long elapsed = (System.nanoTime() - begin) / ROUNDS;
+
+        System.out.printf("%-30s %10.3f ms/round%n", name, elapsed / 1e6);
+    }
+
+    /**
+     * evaluating the same deep tree through Expr's visitor double dispatch and through SealedExpr's type patterns
+     */
+    private static void dispatch(){
+        StringBuilder builder = new StringBuilder();
+        deepExpression(builder, new Random(42), 18);
+        String source = builder.toString();
+
+        Expr tree = new Parser(new TokenStream(new Scanner(source))).parse();
+        SealedExpr.TreeBuilder records = new SealedExpr.TreeBuilder();
+        SealedExpr sealed = records.get(new Parser(new TokenStream(new Scanner(source))).parse(records));
+        Interpreter interpreter = new Interpreter();
+
+        time("dispatch: Expr.Visitor", () -> sink += tree.accept(interpreter).hashCode());
+        time("dispatch: SealedExpr patterns", () -> sink += interpreter.evaluate(sealed).hashCode());
+    }
+
+    /**
+     * DoubleFormatter against Double.toString, on the short decimals source code is made of and on doubles with all
+     * 17 digits
+     */
+    private static void format(){
+        Random random = new Random(42);
+        double[] decimals = new double[100_000];
+        double[] full = new double[decimals.length];
+        for(int i = 0; i < decimals.length; i++){
+            decimals[i] = random.nextInt(100_000) / 100.0;
+            full[i] = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+        }
+        DoubleFormatter formatter = new DoubleFormatter();
+        StringBuilder builder = new StringBuilder();
+
+        time("format: Double.toString decimals", () -> {
+            for(double value : decimals){
+                sink += Double.toString(value).length();
+            }
+        });
+        time("format: DoubleFormatter decimals", () -> {
+            for(double value : decimals){
+                builder.setLength(0);
+                formatter.append(builder, value, false);
+                sink += builder.length();
+            }
+        });
+        time("format: Double.toString full", () -> {
+            for(double value : full){
+                sink += Double.toString(value).length();
+            }
+        });
+        time("format: DoubleFormatter full", () -> {
+            for(double value : full){
+                builder.setLength(0);
+                formatter.append(builder, value, false);
+                sink += builder.length();
+            }
+        });
+    }
+
+    /**
+     * scanning and parsing a big source against loading its tree from the ParseCache, which reads and hashes the
+     * source too
+     */
+    private static void cache(){
+        StringBuilder builder = new StringBuilder();
+        deepExpression(builder, new Random(42), 18);
+        byte[] source = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+        ParseCache cache;
+        try{
+            cache = new ParseCache(Files.createTempDirectory("lox-cache"));
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        //--cache hash-conses what it parses, and stores the DAG
+        HashConsBuilder nodes = new HashConsBuilder();
+        Expr tree = nodes.get(new Parser(new TokenStream(new Scanner(builder.toString()))).parse(nodes));
+        String key = ParseCache.key(source, StandardCharsets.UTF_8);
+        cache.store(key, new Parsed(tree, nodes.shared()));
+
+        time("cache: scan and parse", () -> sink += new Parser(new TokenStream(
+                new Scanner(new String(source, StandardCharsets.UTF_8)))).parse(new HashConsBuilder()));
+        time("cache: hash and load", () -> sink += cache.load(ParseCache.key(source, StandardCharsets.UTF_8))
+                .tree().hashCode());
+    }
+
+    /**
+     * a long chain of string +, copied at every step with String's own + and joined into a Rope, and evaluated whole
+     * by the StackEvaluator, which shares the Interpreter's operators
+     */
+    private static void strings(){
+        String[] parts = new String[20_000];
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < parts.length; i++){
+            parts[i] = "line " + i;
+            builder.append(i == 0 ? "" : " + ").append('"').append(parts[i]).append('"');
+        }
+        Expr tree = new Parser(new TokenStream(new Scanner(builder.toString()))).parse();
+        StackEvaluator evaluator = new StackEvaluator();
+
+        time("strings: String +", () -> {
+            String value = "";
+            for(String part : parts){
+                value = value + part;
+            }
+            sink += value.length();
+        });
+        time("strings: Rope.concat", () -> {
+            CharSequence value = "";
+            for(String part : parts){
+                value = Rope.concat(value, part);
+            }
+            sink += value.toString().length();
+        });
+        time("strings: StackEvaluator", () -> sink += Interpreter.stringify(evaluator.evaluate(tree)).length());
+    }
+
+    /**
+     * AstPrinter's prefix rendering of one big tree as an Expr, a SealedExpr and an ExprArena, and streamed to an
+     * Appendable that drops the text
+     */
+    private static void print(){
+        StringBuilder builder = new StringBuilder();
+        deepExpression(builder, new Random(42), 18);
+        String source = builder.toString();
+
+        Expr tree = new Parser(new TokenStream(new Scanner(source))).parse();
+        SealedExpr.TreeBuilder records = new SealedExpr.TreeBuilder();
+        SealedExpr sealed = records.get(new Parser(new TokenStream(new Scanner(source))).parse(records));
+        ExprArena arena = new ExprArena();
+        int root = new Parser(new TokenStream(new Scanner(source))).parse(arena);
+        AstPrinter printer = new AstPrinter();
+        Appendable discard = new Appendable(){
+            @Override
+            public Appendable append(CharSequence csq){
+                sink += csq.length();
+                return this;
+            }
+            @Override
+            public Appendable append(CharSequence csq, int start, int end){
+                sink += end - start;
+                return this;
+            }
+            @Override
+            public Appendable append(char c){
+                sink++;
+                return this;
+            }
+        };
+
+        time("print: Expr", () -> sink += printer.print(tree).length());
+        time("print: SealedExpr", () -> sink += printer.print(sealed).length());
+        time("print: ExprArena", () -> sink += printer.print(arena, root).length());
+        time("print: Expr streamed", () -> printer.print(tree, discard));
+    }
+
+    /**
+     * the tree walking Interpreter against the bytecode VM, the compiled closures, the hidden JVM classes and the
+     * specializing nodes, on the same corpus of a thousand expressions
+     */
+    private static void vm(){
+        Random random = new Random(42);
+        Expr[] corpus = new Expr[1000];
+        Chunk[] chunks = new Chunk[corpus.length];
+        ClosureCompiler.Evaluator[] closures = new ClosureCompiler.Evaluator[corpus.length];
+        TieredExpr[] tiered = new TieredExpr[corpus.length];
+        SpecializingNode.Root[] specializing = new SpecializingNode.Root[corpus.length];
+        for(int i = 0; i < corpus.length; i++){
+            StringBuilder builder = new StringBuilder();
+            deepExpression(builder, random, 10);
+            corpus[i] = new Parser(new TokenStream(new Scanner(builder.toString()))).parse();
+            chunks[i] = new BytecodeCompiler().compile(corpus[i]);
+            closures[i] = new ClosureCompiler().compile(corpus[i]);
+            tiered[i] = new TieredExpr(corpus[i], new Interpreter(), 0);
+            specializing[i] = SpecializingNode.build(corpus[i]);
+        }
+        Interpreter interpreter = new Interpreter();
+        VM vm = new VM();
+
+        time("vm: Interpreter", () -> {
+            for(Expr expr : corpus){
+                sink += expr.accept(interpreter).hashCode();
+            }
+        });
+        time("vm: VM", () -> {
+            for(Chunk chunk : chunks){
+                sink += vm.run(chunk).hashCode();
+            }
+        });
+        time("vm: closures", () -> {
+            for(ClosureCompiler.Evaluator closure : closures){
+                sink += closure.evaluate().hashCode();
+            }
+        });
+        time("vm: JVM classes", () -> {
+            for(TieredExpr expr : tiered){
+                sink += expr.evaluate().hashCode();
+            }
+        });
+        time("vm: specializing nodes", () -> {
+            for(SpecializingNode.Root root : specializing){
+                sink += root.execute().hashCode();
+            }
+        });
+    }
+
+    /**
+     * a balanced tree of arithmetic with every node type in it, depth levels deep
+     */
+    private static void deepExpression(StringBuilder builder, Random random, int depth){
+        if(depth == 0){
+            builder.append(1 + random.nextInt(9));
+            return;
+        }
+
+        switch (random.nextInt(6)){
+            case 0 -> {
+                builder.append("-(");
+                deepExpression(builder, random, depth - 1);
+                builder.append(')');
+            }
+            case 1 -> {
+                builder.append('(');
+                deepExpression(builder, random, depth - 1);
+                builder.append(" > 0 ? ");
+                deepExpression(builder, random, depth - 1);
+                builder.append(" : 0)");
+            }
+            default -> {
+                builder.append('(');
+                deepExpression(builder, random, depth - 1);
+                builder.append(random.nextBoolean() ? " + " : random.nextBoolean() ? " - " : " * ");
+                deepExpression(builder, random, depth - 1);
+                builder.append(')');
+            }
+        }
+    }
+
+    /**
+     * parser throughput on operator dense input, pre-scanned into a TokenBuffer so only parsing is timed
+     */
+    private static void parse(){
+        String[] operators = {"+", "-", "*", "/", "==", "!=", "<", "<=", ">", ">="};
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < 200_000; i++){
+            if(i > 0){
+                builder.append(' ').append(operators[random.nextInt(operators.length)]).append(' ');
+            }
+            switch (random.nextInt(4)){
+                case 0 -> builder.append("-").append(random.nextInt(100));
+                case 1 -> builder.append('(').append(random.nextInt(100)).append(" * ").append(random.nextInt(100)).append(')');
+                case 2 -> builder.append("!true");
+                default -> builder.append(random.nextInt(100));
+            }
+        }
+        builder.append(" ? 1, 2 : 3");
+
+        TokenBuffer tokens = new Scanner(builder.toString()).scanToBuffer();
+        System.out.println(tokens.size() + " tokens");
+
+        time("parse: operator dense", () -> sink += new Parser(tokens.stream()).parse().hashCode());
+        time("parse: hash-consed", () -> sink += new Parser(tokens.stream()).parse(new HashConsBuilder()));
+    }
+
+    /**
+     * a tree assembled from a handful of fragments, so most of it repeats: its size with and without hash consing,
+     * and evaluating it with and without computing the shared subtrees once
+     */
+    private static void sharing(){
+        Random random = new Random(42);
+        String[] fragments = new String[8];
+        for(int i = 0; i < fragments.length; i++){
+            StringBuilder fragment = new StringBuilder();
+            deepExpression(fragment, random, 6);
+            fragments[i] = fragment.toString();
+        }
+        StringBuilder builder = new StringBuilder();
+        repeatedExpression(builder, random, fragments, 12);
+        String source = builder.toString();
+
+        Expr.TreeBuilder tree = new Expr.TreeBuilder();
+        Expr unshared = tree.get(new Parser(new TokenStream(new Scanner(source))).parse(tree));
+        HashConsBuilder nodes = new HashConsBuilder();
+        Expr shared = nodes.get(new Parser(new TokenStream(new Scanner(source))).parse(nodes));
+        System.out.println(size(unshared) + " nodes, " + nodes.distinct() + " distinct");
+
+        Interpreter interpreter = new Interpreter();
+        MemoizingEvaluator evaluator = new MemoizingEvaluator(nodes.shared());
+        time("sharing: Interpreter", () -> sink += unshared.accept(interpreter).hashCode());
+        time("sharing: MemoizingEvaluator", () -> sink += evaluator.run(shared).hashCode());
+    }
+
+    private static void repeatedExpression(StringBuilder builder, Random random, String[] fragments, int depth){
+        if(depth == 0){
+            builder.append(fragments[random.nextInt(fragments.length)]);
+            return;
+        }
+        builder.append('(');
+        repeatedExpression(builder, random, fragments, depth - 1);
+        builder.append(random.nextBoolean() ? " + " : " - ");
+        repeatedExpression(builder, random, fragments, depth - 1);
+        builder.append(')');
+    }
+
+    private static int size(Expr expr){
+        if(expr instanceof Expr.Binary binary){
+            return 1 + size(binary.left) + size(binary.right);
+        }else if(expr instanceof Expr.Ternary ternary){
+            return 1 + size(ternary.condition) + size(ternary.left) + size(ternary.right);
+        }else if(expr instanceof Expr.Grouping grouping){
+            return 1 + size(grouping.expression);
+        }else if(expr instanceof Expr.Unary unary){
+            return 1 + size(unary.right);
+        }
+        return 1;
+    }
+
+    /**
+     * number literal decoding: Scanner.number() against Double.parseDouble on integers and short decimals.
+     * Also checks every decoded value against parseDouble bit for bit, plus a batch of random long literals that
+     * exercise the fallback
+     */
+    private static void numbers(){
+        Random random = new Random(42);
+        String[] literals = new String[1_000_000];
+        for(int i = 0; i < literals.length; i++){
+            literals[i] = random.nextBoolean() ? Integer.toString(random.nextInt(100_000)) :
+                    random.nextInt(1000) + "." + randomDigits(random, 1 + random.nextInt(4));
+        }
+
+        for(int i = 0; i < 5_000_000; i++){
+            String literal = i < literals.length ? literals[i] : random.nextBoolean() ?
+                    randomDigits(random, 1 + random.nextInt(30)) :
+                    randomDigits(random, 1 + random.nextInt(20)) + "." + randomDigits(random, 1 + random.nextInt(30));
+            double expected = Double.parseDouble(literal);
+            double actual = Scanner.number(literal, 0, literal.length());
+            if(Double.doubleToRawLongBits(expected) != Double.doubleToRawLongBits(actual)){
+                throw new AssertionError(literal + ": expected " + expected + " but decoded " + actual);
+            }
+        }
+
+        time("numbers: Double.parseDouble", () -> {
+            double sum = 0;
+            for(String literal : literals){
+                sum += Double.parseDouble(literal);
+            }
+            sink += (long) sum;
+        });
+
+        time("numbers: Scanner.number", () -> {
+            double sum = 0;
+            for(String literal : literals){
+                sum += Scanner.number(literal, 0, literal.length());
+            }
+            sink += (long) sum;
+        });
+    }
+
+    private static String randomDigits(Random random, int count){
+        StringBuilder builder = new StringBuilder(count);
+        for(int i = 0; i < count; i++){
+            builder.append((char) ('0' + random.nextInt(10)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * keyword recognition on identifier heavy input: the old substring + HashMap lookup against Scanner.keyword()
+     */
+    private static void keywords(){
+        String[] words = {"and", "class", "else", "false", "for", "fun", "if", "nil", "or", "print", "return",
+                "super", "this", "true", "var", "while", "x", "count", "i", "formula", "total_2", "thisValue",
+                "printer", "orbit", "classify", "variable"};
+
+        Map<String, TokenType> keywords = new HashMap<>();
+        for(TokenType type : TokenType.values()){
+            if(type.compareTo(TokenType.AND) >= 0 && type.compareTo(TokenType.WHILE) <= 0){
+                keywords.put(type.name().toLowerCase(), type);
+            }
+        }
+
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        List<int[]> spans = new ArrayList<>();
+        for(int i = 0; i < 1_000_000; i++){
+            String word = words[random.nextInt(words.length)];
+            spans.add(new int[]{builder.length(), word.length()});
+            builder.append(word).append(' ');
+        }
+        String source = builder.toString();
+
+        int[] starts = new int[spans.size()];
+        int[] lengths = new int[spans.size()];
+        for(int i = 0; i < spans.size(); i++){
+            starts[i] = spans.get(i)[0];
+            lengths[i] = spans.get(i)[1];
+        }
+
+        time("keywords: substring + HashMap", () -> {
+            long sum = 0;
+            for(int i = 0; i < starts.length; i++){
+                TokenType type = keywords.get(source.substring(starts[i], starts[i] + lengths[i]));
+                sum += (type == null ? TokenType.IDENTIFIER : type).ordinal();
+            }
+            sink += sum;
+        });
+
+        time("keywords: Scanner.keyword", () -> {
+            long sum = 0;
+            for(int i = 0; i < starts.length; i++){
+                sum += Scanner.keyword(source, starts[i], lengths[i]).ordinal();
+            }
+            sink += sum;
+        });
+
+        time("keywords: scanToBuffer", () -> sink += new Scanner(source).scanToBuffer().size());
+    }
+}
@@ -0,0 +1,178 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles an Expr into a Chunk for the VM. Operands are compiled left to right before their operator, ternaries
+ * become conditional jumps around the branch not taken, and and or jump over their right operand when the left one
+ * decides them, and the left side of a comma is popped
+ */
+class BytecodeCompiler implements Expr.Visitor<Void> {
+
+    private int[] code = new int[64];
+    private int size;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private final List<Token> tokens = new ArrayList<>();
+    private int depth;
+    private int maxDepth;
+
+    Chunk compile(Expr expr){
+        expr.accept(this);
+        emit(Chunk.RETURN);
+
+        return new Chunk(Arrays.copyOf(code, size), constants.toArray(), tokens.toArray(new Token[0]), maxDepth);
+    }
+
+    private void emit(int word){
+        if(size == code.length){
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = word;
+    }
+
+    /**
+     * keeps track of how deep the value stack gets, so the VM can size it once
+     */
+    private void stack(int change){
+        depth += change;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private int token(Token token){
+        tokens.add(token);
+        return tokens.size() - 1;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr){
+        //nil can't be a HashMap key, it gets a slot of its own
+        Integer index = expr.value == null ? null : constantIndex.get(expr.value);
+        if(index == null){
+            index = constants.size();
+            constants.add(expr.value);
+            if(expr.value != null){
+                constantIndex.put(expr.value, index);
+            }
+        }
+
+        emit(Chunk.CONSTANT);
+        emit(index);
+        stack(1);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr){
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr){
+        expr.right.accept(this);
+
+        switch (expr.operator.type){
+            case MINUS -> {
+                emit(Chunk.NEGATE);
+                emit(token(expr.operator));
+            }
+            case BANG -> emit(Chunk.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr){
+        expr.left.accept(this);
+
+        if(expr.operator.type == TokenType.COMMA){
+            //only the right side's value is kept, the left side is still evaluated for its errors
+            emit(Chunk.POP);
+            stack(-1);
+            expr.right.accept(this);
+            return null;
+        }
+        if(Interpreter.isLogical(expr.operator.type)){
+            emit(expr.operator.type == TokenType.AND ? Chunk.JUMP_IF_FALSE_OR_POP : Chunk.JUMP_IF_TRUE_OR_POP);
+            int endJump = size;
+            emit(0);
+            //the right side replaces the left value it popped
+            stack(-1);
+            expr.right.accept(this);
+            code[endJump] = size;
+            return null;
+        }
+
+        expr.right.accept(this);
+
+        switch (expr.operator.type){
+            case EQUAL_EQUAL -> emit(Chunk.EQUAL);
+            case BANG_EQUAL -> emit(Chunk.NOT_EQUAL);
+            default -> {
+                emit(switch (expr.operator.type){
+                    case PLUS -> Chunk.ADD;
+                    case MINUS -> Chunk.SUBTRACT;
+                    case STAR -> Chunk.MULTIPLY;
+                    case SLASH -> Chunk.DIVIDE;
+                    case GREATER -> Chunk.GREATER;
+                    case GREATER_EQUAL -> Chunk.GREATER_EQUAL;
+                    case LESS -> Chunk.LESS;
+                    default -> Chunk.LESS_EQUAL;
+                });
+                emit(token(expr.operator));
+            }
+        }
+        stack(-1);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr){
+        expr.condition.accept(this);
+
+        emit(Chunk.JUMP_IF_FALSE);
+        int elseJump = size;
+        emit(0);
+        stack(-1);
+
+        expr.left.accept(this);
+        emit(Chunk.JUMP);
+        int endJump = size;
+        emit(0);
+
+        //only one branch runs, so the else branch starts from the same depth as the then branch
+        stack(-1);
+        code[elseJump] = size;
+        expr.right.accept(this);
+        code[endJump] = size;
+        return null;
+    }
+
+    /**
+     * the code doesn't depend on which walk reached the node, so RPN is the same walk
+     */
+    @Override
+    public Void BinaryRPN(Expr.Binary expr){
+        return visitBinaryExpr(expr);
+    }
+    @Override
+    public Void TernaryRPN(Expr.Ternary expr){
+        return visitTernaryExpr(expr);
+    }
+    @Override
+    public Void GroupingRPN(Expr.Grouping expr){
+        return visitGroupingExpr(expr);
+    }
+    @Override
+    public Void UnaryRPN(Expr.Unary expr){
+        return visitUnaryExpr(expr);
+    }
+    @Override
+    public Void LiteralRPN(Expr.Literal expr){
+        return visitLiteralExpr(expr);
+    }
+}
@@ -0,0 +1,51 @@
+package lox;
+
+/**
+ * Compiled form of an Expr for the VM: a flat array of code words, a constant pool and the operator tokens the
+ * instructions report runtime errors at. Every instruction is an opcode followed by its operands
+ */
+final class Chunk {
+
+    //push constants[operand]
+    static final int CONSTANT = 0;
+    //arithmetic and comparisons pop two values and push one, the operand is the operator's index in tokens
+    static final int ADD = 1;
+    static final int SUBTRACT = 2;
+    static final int MULTIPLY = 3;
+    static final int DIVIDE = 4;
+    static final int GREATER = 5;
+    static final int GREATER_EQUAL = 6;
+    static final int LESS = 7;
+    static final int LESS_EQUAL = 8;
+    //pop two values, push whether they are (not) equal
+    static final int EQUAL = 9;
+    static final int NOT_EQUAL = 10;
+    //pop one value and push its negation, the operand is the operator's index in tokens
+    static final int NEGATE = 11;
+    //pop one value and push !isTruthy(value)
+    static final int NOT = 12;
+    //drop the top of the stack
+    static final int POP = 13;
+    //pop the condition and jump to operand if it is falsey
+    static final int JUMP_IF_FALSE = 14;
+    //jump to operand
+    static final int JUMP = 15;
+    //pop the result and stop
+    static final int RETURN = 16;
+    //and / or: jump to operand keeping the top of the stack if it is falsey / truthy, pop it otherwise
+    static final int JUMP_IF_FALSE_OR_POP = 17;
+    static final int JUMP_IF_TRUE_OR_POP = 18;
+
+    final int[] code;
+    final Object[] constants;
+    final Token[] tokens;
+    //deepest the value stack gets while running the chunk
+    final int maxStack;
+
+    Chunk(int[] code, Object[] constants, Token[] tokens, int maxStack){
+        this.code = code;
+        this.constants = constants;
+        this.tokens = tokens;
+        this.maxStack = maxStack;
+    }
+}
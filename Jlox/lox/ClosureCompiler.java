@@ -0,0 +1,183 @@
+package lox;
+
+/**
+ * Compiles an Expr into a graph of pre-bound closures, once. Every operator gets its own closure holding its
+ * operands' closures, so the operator is looked at once when compiling and evaluating never switches on it.
+ * The operand calls inside a closure still see every kind of child closure, so they stay virtual calls
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Evaluator> {
+
+    interface Evaluator {
+        Object evaluate();
+    }
+
+    Evaluator compile(Expr expr){
+        return expr.accept(this);
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr){
+        Object value = expr.value;
+        return () -> value;
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr){
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitTernaryExpr(Expr.Ternary expr){
+        Evaluator condition = compile(expr.condition);
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+
+        return () -> Interpreter.isTruthy(condition.evaluate()) ? left.evaluate() : right.evaluate();
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr){
+        Evaluator right = compile(expr.right);
+        Token operator = expr.operator;
+
+        if(operator.type == TokenType.BANG){
+            return () -> !Interpreter.isTruthy(right.evaluate());
+        }
+        return () -> {
+            Object value = right.evaluate();
+            if(!(value instanceof Double)){
+                throw Interpreter.unaryError(operator);
+            }
+            return -(double) value;
+        };
+    }
+
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr){
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type){
+            case COMMA -> {
+                return () -> {
+                    left.evaluate();
+                    return right.evaluate();
+                };
+            }
+            case AND -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    return Interpreter.isTruthy(l) ? right.evaluate() : l;
+                };
+            }
+            case OR -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    return Interpreter.isTruthy(l) ? l : right.evaluate();
+                };
+            }
+            case EQUAL_EQUAL -> {return () -> Interpreter.isEqual(left.evaluate(), right.evaluate());}
+            case BANG_EQUAL -> {return () -> !Interpreter.isEqual(left.evaluate(), right.evaluate());}
+            case PLUS -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    if(l instanceof Double && r instanceof Double){
+                        return (double) l + (double) r;
+                    }
+                    if(l instanceof String && r instanceof String){
+                        return (String) l + (String) r;
+                    }
+                    throw Interpreter.binaryError(operator);
+                };
+            }
+            case MINUS -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l - (double) r;
+                };
+            }
+            case STAR -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l * (double) r;
+                };
+            }
+            case SLASH -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l / (double) r;
+                };
+            }
+            case GREATER -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l > (double) r;
+                };
+            }
+            case GREATER_EQUAL -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l >= (double) r;
+                };
+            }
+            case LESS -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l < (double) r;
+                };
+            }
+            default -> {
+                return () -> {
+                    Object l = left.evaluate();
+                    Object r = right.evaluate();
+                    checkNumbers(l, r, operator);
+                    return (double) l <= (double) r;
+                };
+            }
+        }
+    }
+
+    private static void checkNumbers(Object left, Object right, Token operator){
+        if(!(left instanceof Double && right instanceof Double)){
+            throw Interpreter.binaryError(operator);
+        }
+    }
+
+    /**
+     * the compiler doesn't care which walk reached the node, so RPN is the same walk
+     */
+    @Override
+    public Evaluator BinaryRPN(Expr.Binary expr){
+        return visitBinaryExpr(expr);
+    }
+    @Override
+    public Evaluator TernaryRPN(Expr.Ternary expr){
+        return visitTernaryExpr(expr);
+    }
+    @Override
+    public Evaluator GroupingRPN(Expr.Grouping expr){
+        return visitGroupingExpr(expr);
+    }
+    @Override
+    public Evaluator UnaryRPN(Expr.Unary expr){
+        return visitUnaryExpr(expr);
+    }
+    @Override
+    public Evaluator LiteralRPN(Expr.Literal expr){
+        return visitLiteralExpr(expr);
+    }
+}
@@ -0,0 +1,110 @@
+package lox;
+
+/**
+ * Optimisation pass run between parsing and evaluation: folds constant subtrees into literals, drops groupings and
+ * picks the branch of ternaries whose condition is constant. Subtrees that would raise a runtime error are kept as
+ * they are, so the error is still reported by the interpreter, at the same token and in the same order
+ */
+class ConstantFolder implements Expr.Visitor<Expr> {
+
+    private final Interpreter interpreter;
+
+    ConstantFolder(Interpreter interpreter){
+        this.interpreter = interpreter;
+    }
+
+    Expr fold(Expr expr){
+        return expr.accept(this);
+    }
+
+    /**
+     * evaluates a node whose operands are all literals
+     * @return the node's value as a literal, or the node itself if evaluating it fails
+     */
+    private Expr evaluate(Expr expr){
+        try{
+            return new Expr.Literal(expr.accept(interpreter));
+        }catch (RuntimeError error){
+            return expr;
+        }
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr){
+        Expr left = fold(expr.left);
+
+        //a literal can't fail, so a comma can drop it, and it decides an and / or before the right side is folded
+        if(left instanceof Expr.Literal literal){
+            switch (expr.operator.type){
+                case COMMA -> {return fold(expr.right);}
+                case AND, OR -> {
+                    return Interpreter.shortCircuits(expr.operator.type, literal.value) ? left : fold(expr.right);
+                }
+            }
+        }
+        Expr right = fold(expr.right);
+
+        Expr folded = new Expr.Binary(left, expr.operator, right);
+        if(left instanceof Expr.Literal && right instanceof Expr.Literal){
+            return evaluate(folded);
+        }
+        return folded;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr){
+        Expr condition = fold(expr.condition);
+
+        //same truthiness rules as the interpreter, the branch not taken is never evaluated
+        if(condition instanceof Expr.Literal){
+            return Interpreter.isTruthy(((Expr.Literal) condition).value) ? fold(expr.left) : fold(expr.right);
+        }
+        return new Expr.Ternary(condition, expr.first, fold(expr.left), expr.second, fold(expr.right));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr){
+        //groupings only matter to the parser
+        return fold(expr.expression);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr){
+        Expr right = fold(expr.right);
+
+        Expr folded = new Expr.Unary(expr.operator, right);
+        if(right instanceof Expr.Literal){
+            return evaluate(folded);
+        }
+        return folded;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr){
+        return expr;
+    }
+
+    /**
+     * folding doesn't depend on the order the operands are read in, so RPN is the same walk
+     */
+    @Override
+    public Expr BinaryRPN(Expr.Binary expr){
+        return visitBinaryExpr(expr);
+    }
+    @Override
+    public Expr TernaryRPN(Expr.Ternary expr){
+        return visitTernaryExpr(expr);
+    }
+    @Override
+    public Expr GroupingRPN(Expr.Grouping expr){
+        return visitGroupingExpr(expr);
+    }
+    @Override
+    public Expr UnaryRPN(Expr.Unary expr){
+        return visitUnaryExpr(expr);
+    }
+    @Override
+    public Expr LiteralRPN(Expr.Literal expr){
+        return visitLiteralExpr(expr);
+    }
+}
@@ -0,0 +1,102 @@
+package lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The errors of one run: where they are printed and whether there were any. Each run gets its own, so runs on
+ * different threads, like the requests of a LoxServer, don't see each other's errors
+ */
+final class Diagnostics {
+
+    private final PrintStream err;
+    //the errors of a Diagnostics made by held(), kept until they are passed on
+    private final List<Held> held;
+    private boolean hadError;
+    private boolean hadRuntimeError;
+
+    private record Held(String text, boolean runtime) {}
+
+    Diagnostics(PrintStream err){
+        this(err, null);
+    }
+
+    private Diagnostics(PrintStream err, List<Held> held){
+        this.err = err;
+        this.held = held;
+    }
+
+    /**
+     * a Diagnostics that prints nothing, its errors are held until passOn() hands them to the one of the run. Lets a
+     * stage running ahead, like the parser of a Pipeline, keep its errors in order with what is printed
+     */
+    static Diagnostics held(){
+        return new Diagnostics(null, new ArrayList<>());
+    }
+
+    boolean holdsErrors(){
+        return !held.isEmpty();
+    }
+
+    /**
+     * reports the held errors into diagnostics in the order they were made, and forgets them
+     */
+    void passOn(Diagnostics diagnostics){
+        for(Held error : held){
+            diagnostics.print(error.text(), error.runtime());
+        }
+        held.clear();
+    }
+
+    boolean hadError(){
+        return hadError;
+    }
+
+    boolean hadRuntimeError(){
+        return hadRuntimeError;
+    }
+
+    /**
+     * what a script run from a file exits with, 65 after a syntax error, 70 after a runtime error, 0 otherwise
+     */
+    int exitCode(){
+        return hadError ? 65 : hadRuntimeError ? 70 : 0;
+    }
+
+    void error(int line, String message){
+        report(line, "", message);
+    }
+    void error(Token token, String message){
+        if(token.type == TokenType.EOF){
+            report(token.line, "end of the line", message);
+        }else{
+            report(token.line, "at '"+token.lexeme()+"'", message);
+        }
+    }
+    void runtimeError(RuntimeError error){
+        print("[Line: " +error.token.line+ "] Error at '" +error.token.lexeme()+ "': "+error.getMessage(), true);
+    }
+    /**
+     * the recursive walks ran out of Java stack, only the run that did is lost
+     */
+    void stackOverflow(){
+        print("Error: the expression is nested too deeply, run it with --iterative", true);
+    }
+    void report(int line, String where, String message){
+        print("[Line: " +line+ "] Error " +where+ ": "+message, false);
+    }
+
+    private void print(String text, boolean runtime){
+        if(held != null){
+            held.add(new Held(text, runtime));
+        }else {
+            err.println(text);
+        }
+        if(runtime){
+            hadRuntimeError = true;
+        }else {
+            hadError = true;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package lox;
+
+import java.math.BigInteger;
+
+/**
+ * Shortest round trip formatting of doubles with the Schubfach algorithm (R. Giulietti, "The Schubfach way to render
+ * doubles"). Picks the shortest decimal that reads back as the same double, the closest one if there are several,
+ * and lays it out like Double.toString: plain between 10^-3 and 10^7, computerized scientific notation otherwise.
+ * That is the layout Double.toString is specified to have since JDK 19; older JDKs sometimes print more digits.
+ * Digits go into a char buffer owned by the formatter, so formatting allocates nothing. Not thread safe, each
+ * thread needs its own formatter
+ */
+final class DoubleFormatter {
+
+    //precision of a double in bits, and the range of exponents q of its value c 2^q
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final int Q_MAX = 971;
+    //the smallest normal significand, and the significands below which a subnormal needs an extra digit
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int C_TINY = 3;
+    //the decimal precision every significand is normalized to when laying out digits
+    private static final int H = 17;
+
+    private static final long SIGNIFICAND_MASK = C_MIN - 1;
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final int MASK_28 = (1 << 28) - 1;
+
+    private static final int K_MIN = flog10pow2(Q_MIN);
+    private static final int K_MAX = flog10pow2(Q_MAX);
+    //126 bit approximations from above of 10^-k, split in their high and low 63 bits
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+    private static final long[] POWERS_OF_TEN = new long[H + 1];
+
+    static {
+        BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for(int k = K_MIN; k <= K_MAX; k++){
+            //10^-k = beta 2^r with 2^125 <= beta < 2^126, and g = floor(beta) + 1
+            int r = flog2pow10(-k) - 125;
+            BigInteger g;
+            if(k <= 0){
+                BigInteger power = BigInteger.TEN.pow(-k);
+                g = r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r);
+            }else {
+                g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+            }
+            g = g.add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValueExact();
+            G[2 * (k - K_MIN) + 1] = g.and(mask63).longValue();
+        }
+
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i <= H; i++){
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final char[] chars = new char[32];
+    private int length;
+
+    /**
+     * appends v spelled like Double.toString, or like Lox prints numbers when trim is set: without the .0 of an
+     * integral value in plain notation
+     */
+    void append(StringBuilder out, double v, boolean trim){
+        format(v);
+        if(trim && chars[length - 2] == '.' && chars[length - 1] == '0'){
+            length -= 2;
+        }
+        out.append(chars, 0, length);
+    }
+
+    private static final ThreadLocal<DoubleFormatter> FORMATTERS = ThreadLocal.withInitial(DoubleFormatter::new);
+
+    /**
+     * v as Lox prints it, formatted with this thread's formatter
+     */
+    static String lox(double v){
+        DoubleFormatter formatter = FORMATTERS.get();
+        formatter.format(v);
+        int length = formatter.length;
+        if(formatter.chars[length - 2] == '.' && formatter.chars[length - 1] == '0'){
+            length -= 2;
+        }
+        return new String(formatter.chars, 0, length);
+    }
+
+    private void format(double v){
+        length = 0;
+        long bits = Double.doubleToRawLongBits(v);
+        long t = bits & SIGNIFICAND_MASK;
+        int bq = (int) (bits >>> (P - 1)) & 0x7ff;
+
+        if(bq == 0x7ff){
+            append(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+        if(bits < 0){
+            append('-');
+        }
+        if(bq == 0 && t == 0){
+            append("0.0");
+            return;
+        }
+
+        if(bq != 0){
+            //normal, v = c 2^q
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            //integers below 2^53 are their own shortest decimal
+            if(0 < mq && mq < P){
+                long f = c >> mq;
+                if(f << mq == c){
+                    toChars(f, 0);
+                    return;
+                }
+            }
+            toDecimal(-mq, c, 0);
+        }else if(t < C_TINY){
+            //so few bits that a one digit decimal may be too far off, look for two digits instead
+            toDecimal(Q_MIN, 10 * t, -1);
+        }else {
+            toDecimal(Q_MIN, t, 0);
+        }
+    }
+
+    /**
+     * finds the decimal f 10^e for c 2^q: the interval of reals rounding to v is scaled by 10^-k so that it holds
+     * one or two integers, one of which, or a multiple of ten near them, is the shortest decimal
+     */
+    private void toDecimal(int q, long c, int dk){
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        //at a power of two the interval below v is half as wide as the one above
+        if(c != C_MIN || q == Q_MIN){
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        }else {
+            cbl = cb - 1;
+            k = flog10ThreeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if(s >= 100){
+            //one digit less, s / 10 = floor(s 115_292_150_460_684_698 / 2^64)
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if(upin != wpin){
+                toChars(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if(uin != win){
+            toChars(uin ? s : t, k + dk);
+            return;
+        }
+        //both are in, the closer one wins and ties go to the even one
+        long cmp = vb - (s + t << 1);
+        toChars(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * cp g 2^-127 rounded to odd, which keeps the comparisons above exact
+     */
+    private static long roundToOdd(long g1, long g0, long cp){
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * lays out f 10^e
+     */
+    private void toChars(long f, int e){
+        int len = flog10pow2(Long.SIZE - Long.numberOfLeadingZeros(f));
+        if(f >= POWERS_OF_TEN[len]){
+            len++;
+        }
+        //normalize to 10^(H-1) <= f < 10^H, so that the value is 0.f 10^e
+        f *= POWERS_OF_TEN[H - len];
+        e += len;
+
+        //h is the leading digit, m the next 8 and l the last 8: f / 10^8 = floor(f 193_428_131_138_340_668 / 2^84)
+        long hm = Math.multiplyHigh(f, 193_428_131_138_340_668L) >>> 20;
+        int l = (int) (f - 100_000_000L * hm);
+        int h = (int) (hm * 1_441_151_881L >>> 57);
+        int m = (int) (hm - 100_000_000 * h);
+
+        if(0 < e && e <= 7){
+            //plain, the point falls inside the digits
+            appendDigit(h);
+            int y = y(m);
+            int i = 1;
+            for(; i < e; i++){
+                int t = 10 * y;
+                appendDigit(t >>> 28);
+                y = t & MASK_28;
+            }
+            append('.');
+            for(; i <= 8; i++){
+                int t = 10 * y;
+                appendDigit(t >>> 28);
+                y = t & MASK_28;
+            }
+            lowDigits(l);
+        }else if(-3 < e && e <= 0){
+            //plain, with leading zeroes
+            appendDigit(0);
+            append('.');
+            for(; e < 0; e++){
+                appendDigit(0);
+            }
+            appendDigit(h);
+            append8Digits(m);
+            lowDigits(l);
+        }else {
+            appendDigit(h);
+            append('.');
+            append8Digits(m);
+            lowDigits(l);
+            exponent(e - 1);
+        }
+    }
+
+    private void lowDigits(int l){
+        if(l != 0){
+            append8Digits(l);
+        }
+        //drop trailing zeroes, but keep the one right after the point
+        while(chars[length - 1] == '0'){
+            length--;
+        }
+        if(chars[length - 1] == '.'){
+            length++;
+        }
+    }
+
+    /**
+     * left to right digit extraction of a < 10^8 as a 28 bit fixed point fraction
+     */
+    private void append8Digits(int a){
+        int y = y(a);
+        for(int i = 0; i < 8; i++){
+            int t = 10 * y;
+            appendDigit(t >>> 28);
+            y = t & MASK_28;
+        }
+    }
+
+    private static int y(int a){
+        return (int) (Math.multiplyHigh((long) (a + 1) << 28, 193_428_131_138_340_668L) >>> 20) - 1;
+    }
+
+    private void exponent(int e){
+        append('E');
+        if(e < 0){
+            append('-');
+            e = -e;
+        }
+        if(e < 10){
+            appendDigit(e);
+            return;
+        }
+        int d;
+        if(e >= 100){
+            //e / 100 = floor(e 1_311 / 2^17)
+            d = e * 1_311 >>> 17;
+            appendDigit(d);
+            e -= 100 * d;
+        }
+        //e / 10 = floor(e 103 / 2^10)
+        d = e * 103 >>> 10;
+        appendDigit(d);
+        appendDigit(e - 10 * d);
+    }
+
+    private void appendDigit(int digit){
+        chars[length++] = (char) ('0' + digit);
+    }
+
+    private void append(char c){
+        chars[length++] = c;
+    }
+
+    private void append(String text){
+        text.getChars(0, text.length(), chars, length);
+        length += text.length();
+    }
+
+    //floor(q log10(2)), floor(log10(3/4 2^q)) and floor(e log2(10)) in fixed point, exact over the ranges used here
+    private static int flog10pow2(int q){
+        return (int) (q * 661_971_961_083L >> 41);
+    }
+
+    private static int flog10ThreeQuartersPow2(int q){
+        return (int) (q * 661_971_961_083L - 274_743_187_321L >> 41);
+    }
+
+    private static int flog2pow10(int e){
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
@@ -1,112 +1,158 @@
 package lox;
-
+
+import java.util.Arrays;
 import java.util.List;
-
+
 abstract class Expr {
-
-	interface Visitor<R> {
-		R visitBinaryExpr(Binary expr);
+
+	interface Visitor<R> {
+		R visitBinaryExpr(Binary expr);
 		R BinaryRPN(Binary expr);
-
-		R visitTernaryExpr(Ternary expr);
+
+		R visitTernaryExpr(Ternary expr);
 		R TernaryRPN(Ternary expr);
-
-		R visitGroupingExpr(Grouping expr);
+
+		R visitGroupingExpr(Grouping expr);
 		R GroupingRPN(Grouping expr);
-
-		R visitUnaryExpr(Unary expr);
+
+		R visitUnaryExpr(Unary expr);
 		R UnaryRPN(Unary expr);
-
-		R visitLiteralExpr(Literal expr);
+
+		R visitLiteralExpr(Literal expr);
 		R LiteralRPN(Literal expr);
-
-	}
-	static class Binary   extends Expr {
-		Binary  ( Expr left, Token operator, Expr right){
-		this.left = left;
-		this.operator = operator;
-		this.right = right;
-		}
-		@Override
-		<R> R accept(Visitor<R> visitor){
+
+	}
+	static class Binary   extends Expr {
+		Binary  ( Expr left, Token operator, Expr right){
+		this.left = left;
+		this.operator = operator;
+		this.right = right;
+		}
+		@Override
+		<R> R accept(Visitor<R> visitor){
 		return visitor.visitBinaryExpr(this);
-}
-		@Override
-		<R> R RPN(Visitor<R> visitor){
+}
+		@Override
+		<R> R RPN(Visitor<R> visitor){
 		return visitor.BinaryRPN(this);
-}
-		Expr left;
-		Token operator;
-		Expr right;
-	}
-	static class Ternary extends Expr {
-		Ternary( Expr condition, Token first, Expr left, Token second, Expr right){
-		this.condition = condition;
-		this.first = first;
-		this.left = left;
-		this.second = second;
-		this.right = right;
-		}
-		@Override
-		<R> R accept(Visitor<R> visitor){
+}
+		Expr left;
+		Token operator;
+		Expr right;
+	}
+	static class Ternary extends Expr {
+		Ternary( Expr condition, Token first, Expr left, Token second, Expr right){
+		this.condition = condition;
+		this.first = first;
+		this.left = left;
+		this.second = second;
+		this.right = right;
+		}
+		@Override
+		<R> R accept(Visitor<R> visitor){
 		return visitor.visitTernaryExpr(this);
-}
-		@Override
-		<R> R RPN(Visitor<R> visitor){
+}
+		@Override
+		<R> R RPN(Visitor<R> visitor){
 		return visitor.TernaryRPN(this);
-}
-		Expr condition;
-		Token first;
-		Expr left;
-		Token second;
-		Expr right;
-	}
-	static class Grouping extends Expr {
-		Grouping( Expr expression){
-		this.expression = expression;
-		}
-		@Override
-		<R> R accept(Visitor<R> visitor){
+}
+		Expr condition;
+		Token first;
+		Expr left;
+		Token second;
+		Expr right;
+	}
+	static class Grouping extends Expr {
+		Grouping( Expr expression){
+		this.expression = expression;
+		}
+		@Override
+		<R> R accept(Visitor<R> visitor){
 		return visitor.visitGroupingExpr(this);
-}
-		@Override
-		<R> R RPN(Visitor<R> visitor){
+}
+		@Override
+		<R> R RPN(Visitor<R> visitor){
 		return visitor.GroupingRPN(this);
-}
-		Expr expression;
-	}
-	static class Unary    extends Expr {
-		Unary   ( Token operator, Expr right){
-		this.operator = operator;
-		this.right = right;
-		}
-		@Override
-		<R> R accept(Visitor<R> visitor){
+}
+		Expr expression;
+	}
+	static class Unary    extends Expr {
+		Unary   ( Token operator, Expr right){
+		this.operator = operator;
+		this.right = right;
+		}
+		@Override
+		<R> R accept(Visitor<R> visitor){
 		return visitor.visitUnaryExpr(this);
-}
-		@Override
-		<R> R RPN(Visitor<R> visitor){
+}
+		@Override
+		<R> R RPN(Visitor<R> visitor){
 		return visitor.UnaryRPN(this);
-}
-		Token operator;
-		Expr right;
-	}
-	static class Literal  extends Expr {
-		Literal ( Object value){
-		this.value = value;
-		}
-		@Override
-		<R> R accept(Visitor<R> visitor){
+}
+		Token operator;
+		Expr right;
+	}
+	static class Literal  extends Expr {
+		Literal ( Object value){
+		this.value = value;
+		}
+		@Override
+		<R> R accept(Visitor<R> visitor){
 		return visitor.visitLiteralExpr(this);
-}
-		@Override
-		<R> R RPN(Visitor<R> visitor){
+}
+		@Override
+		<R> R RPN(Visitor<R> visitor){
 		return visitor.LiteralRPN(this);
-}
-		Object value;
-	}
+}
+		Object value;
+	}
+
+	abstract <R> R accept(Visitor<R> visitor);
+	abstract <R> R RPN(Visitor<R> visitor);
+
+	interface Builder {
+		int binary(int left, Token operator, int right);
+		int ternary(int condition, Token first, int left, Token second, int right);
+		int grouping(int expression);
+		int unary(Token operator, int right);
+		int literal(Object value);
+	}
+
+	static class TreeBuilder implements Builder {
+		private Expr[] stack = new Expr[16];
+		private int size;
 
-	abstract <R> R accept(Visitor<R> visitor);
-	abstract <R> R RPN(Visitor<R> visitor);
+		@Override
+		public int binary(int left, Token operator, int right){
+		return push(new Binary(stack[left], operator, stack[right]), left);
+}
+		@Override
+		public int ternary(int condition, Token first, int left, Token second, int right){
+		return push(new Ternary(stack[condition], first, stack[left], second, stack[right]), condition);
+}
+		@Override
+		public int grouping(int expression){
+		return push(new Grouping(stack[expression]), expression);
+}
+		@Override
+		public int unary(Token operator, int right){
+		return push(new Unary(operator, stack[right]), right);
+}
+		@Override
+		public int literal(Object value){
+		return push(new Literal(value), size);
+}
+		private int push(Expr node, int handle){
+		if(handle == stack.length){
+		stack = Arrays.copyOf(stack, handle * 2);
+		}
+		stack[handle] = node;
+		size = handle + 1;
+		return handle;
+}
+		Expr get(int handle){
+		return stack[handle];
+}
+	}
 
-}
+}
@@ -0,0 +1,216 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * Flat Expr tree: node kinds, child indices and token types/lines live in primitive arrays,
+ * literal values in one shared table. Generated by GenerateAst --arena
+ */
+final class ExprArena implements Expr.Builder {
+
+	static final byte BINARY = 0;
+	static final byte TERNARY = 1;
+	static final byte GROUPING = 2;
+	static final byte UNARY = 3;
+	static final byte LITERAL = 4;
+
+	private static final int CHILDREN = 3;
+	private static final int TOKENS = 2;
+	private static final TokenType[] TYPES = TokenType.values();
+
+	private byte[] kinds = new byte[64];
+	private int[] children = new int[64 * CHILDREN];
+	private byte[] types = new byte[64 * TOKENS];
+	private int[] lines = new int[64 * TOKENS];
+	private Object[] values = new Object[16];
+	//operators always have the same lexeme, so one is kept per token type
+	private final String[] lexemes = new String[TYPES.length];
+	private int size;
+	private int valueCount;
+
+	interface Visitor<R> {
+		R visitBinaryNode(ExprArena arena, int node);
+		R BinaryNodeRPN(ExprArena arena, int node);
+
+		R visitTernaryNode(ExprArena arena, int node);
+		R TernaryNodeRPN(ExprArena arena, int node);
+
+		R visitGroupingNode(ExprArena arena, int node);
+		R GroupingNodeRPN(ExprArena arena, int node);
+
+		R visitUnaryNode(ExprArena arena, int node);
+		R UnaryNodeRPN(ExprArena arena, int node);
+
+		R visitLiteralNode(ExprArena arena, int node);
+		R LiteralNodeRPN(ExprArena arena, int node);
+
+	}
+
+	@Override
+	public int binary(int left, Token operator, int right){
+		int node = add(BINARY);
+		children[node * CHILDREN + 0] = left;
+		setToken(node * TOKENS + 0, operator);
+		children[node * CHILDREN + 1] = right;
+		return node;
+	}
+
+	@Override
+	public int ternary(int condition, Token first, int left, Token second, int right){
+		int node = add(TERNARY);
+		children[node * CHILDREN + 0] = condition;
+		setToken(node * TOKENS + 0, first);
+		children[node * CHILDREN + 1] = left;
+		setToken(node * TOKENS + 1, second);
+		children[node * CHILDREN + 2] = right;
+		return node;
+	}
+
+	@Override
+	public int grouping(int expression){
+		int node = add(GROUPING);
+		children[node * CHILDREN + 0] = expression;
+		return node;
+	}
+
+	@Override
+	public int unary(Token operator, int right){
+		int node = add(UNARY);
+		setToken(node * TOKENS + 0, operator);
+		children[node * CHILDREN + 0] = right;
+		return node;
+	}
+
+	@Override
+	public int literal(Object value){
+		int node = add(LITERAL);
+		children[node * CHILDREN + 0] = addValue(value);
+		return node;
+	}
+
+	int size(){
+		return size;
+	}
+
+	byte kind(int node){
+		return kinds[node];
+	}
+
+	int binaryLeft(int node){
+		return children[node * CHILDREN + 0];
+	}
+
+	TokenType binaryOperatorType(int node){
+		return TYPES[types[node * TOKENS + 0]];
+	}
+
+	Token binaryOperator(int node){
+		return token(node * TOKENS + 0);
+	}
+
+	int binaryRight(int node){
+		return children[node * CHILDREN + 1];
+	}
+
+	int ternaryCondition(int node){
+		return children[node * CHILDREN + 0];
+	}
+
+	TokenType ternaryFirstType(int node){
+		return TYPES[types[node * TOKENS + 0]];
+	}
+
+	Token ternaryFirst(int node){
+		return token(node * TOKENS + 0);
+	}
+
+	int ternaryLeft(int node){
+		return children[node * CHILDREN + 1];
+	}
+
+	TokenType ternarySecondType(int node){
+		return TYPES[types[node * TOKENS + 1]];
+	}
+
+	Token ternarySecond(int node){
+		return token(node * TOKENS + 1);
+	}
+
+	int ternaryRight(int node){
+		return children[node * CHILDREN + 2];
+	}
+
+	int groupingExpression(int node){
+		return children[node * CHILDREN + 0];
+	}
+
+	TokenType unaryOperatorType(int node){
+		return TYPES[types[node * TOKENS + 0]];
+	}
+
+	Token unaryOperator(int node){
+		return token(node * TOKENS + 0);
+	}
+
+	int unaryRight(int node){
+		return children[node * CHILDREN + 0];
+	}
+
+	Object literalValue(int node){
+		return values[children[node * CHILDREN + 0]];
+	}
+
+	<R> R accept(int node, Visitor<R> visitor){
+		switch (kinds[node]){
+			case BINARY -> {return visitor.visitBinaryNode(this, node);}
+			case TERNARY -> {return visitor.visitTernaryNode(this, node);}
+			case GROUPING -> {return visitor.visitGroupingNode(this, node);}
+			case UNARY -> {return visitor.visitUnaryNode(this, node);}
+			case LITERAL -> {return visitor.visitLiteralNode(this, node);}
+		}
+		throw new IllegalStateException("unknown node kind " + kinds[node]);
+	}
+
+	<R> R RPN(int node, Visitor<R> visitor){
+		switch (kinds[node]){
+			case BINARY -> {return visitor.BinaryNodeRPN(this, node);}
+			case TERNARY -> {return visitor.TernaryNodeRPN(this, node);}
+			case GROUPING -> {return visitor.GroupingNodeRPN(this, node);}
+			case UNARY -> {return visitor.UnaryNodeRPN(this, node);}
+			case LITERAL -> {return visitor.LiteralNodeRPN(this, node);}
+		}
+		throw new IllegalStateException("unknown node kind " + kinds[node]);
+	}
+
+	private int add(byte kind){
+		if(size == kinds.length){
+			int capacity = size * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			children = Arrays.copyOf(children, capacity * CHILDREN);
+			types = Arrays.copyOf(types, capacity * TOKENS);
+			lines = Arrays.copyOf(lines, capacity * TOKENS);
+		}
+		kinds[size] = kind;
+		return size++;
+	}
+
+	private int addValue(Object value){
+		if(valueCount == values.length){
+			values = Arrays.copyOf(values, valueCount * 2);
+		}
+		values[valueCount] = value;
+		return valueCount++;
+	}
+
+	private void setToken(int slot, Token token){
+		types[slot] = (byte) token.type.ordinal();
+		lines[slot] = token.line;
+		if(lexemes[token.type.ordinal()] == null){
+			lexemes[token.type.ordinal()] = token.lexeme();
+		}
+	}
+
+	private Token token(int slot){
+		return new Token(TYPES[types[slot]], lexemes[types[slot]], null, lines[slot]);
+	}
+}
@@ -0,0 +1,245 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Builds Expr trees like Expr.TreeBuilder, but hands out the node it already has whenever the parser asks for a
+ * structurally equal one, so repeated subexpressions become one shared node. Every distinct node gets an int id and
+ * children are interned before their parents, so a node's key is its kind, its children's ids, its operator's type
+ * and line and its literal value. The line is only kept for an operator that can fail on what its operands may
+ * evaluate to, a runtime error then still points at the line it occurs on. An operator that can't fail, like the
+ * arithmetic of number literals, is shared across lines too.
+ * The keys live in parallel arrays like ExprArena's, with an open addressing table of ids over them, so interning
+ * allocates nothing but the new nodes
+ */
+final class HashConsBuilder implements Expr.Builder {
+
+    private static final int BINARY = 0;
+    private static final int TERNARY = 1;
+    private static final int GROUPING = 2;
+    private static final int UNARY = 3;
+    private static final int LITERAL = 4;
+
+    //the child id of a node without that child, and find's answer when there is no such node yet
+    private static final int NONE = -1;
+
+    //what a node evaluates to whenever it doesn't fail: a number, a string or rope, or anything
+    private static final byte NUMBER = 0;
+    private static final byte STRING = 1;
+    private static final byte ANY = 2;
+
+    //the key of every distinct node, indexed by id
+    private Expr[] nodes = new Expr[64];
+    private byte[] kinds = new byte[64];
+    private int[] children = new int[64 * 3];
+    private int[] operators = new int[64];
+    private int[] lines = new int[64];
+    private Object[] values = new Object[64];
+    private int count;
+    //what each node evaluates to, follows from its key
+    private byte[] types = new byte[64];
+
+    //id + 1 of the node hashed to each slot, 0 for an empty slot
+    private int[] table = new int[128];
+
+    //operator nodes that were asked for more than once, literals are as cheap to evaluate as to look up
+    private final Set<Expr> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    //the node and its id for every handle the parser holds
+    private Expr[] stack = new Expr[16];
+    private int[] ids = new int[16];
+    private int size;
+
+    @Override
+    public int binary(int left, Token operator, int right){
+        byte leftType = types[ids[left]];
+        byte rightType = types[ids[right]];
+        int line = canFail(operator.type, leftType, rightType) ? operator.line : 0;
+        int id = find(BINARY, ids[left], ids[right], NONE, operator.type.ordinal(), line, null);
+        if(id == NONE){
+            id = add(new Expr.Binary(stack[left], operator, stack[right]), BINARY, ids[left], ids[right], NONE,
+                    operator.type.ordinal(), line, null, type(operator.type, leftType, rightType));
+        }
+        return push(id, left);
+    }
+
+    @Override
+    public int ternary(int condition, Token first, int left, Token second, int right){
+        //picking a branch can't fail
+        int id = find(TERNARY, ids[condition], ids[left], ids[right], first.type.ordinal(), 0, null);
+        if(id == NONE){
+            byte type = types[ids[left]] == types[ids[right]] ? types[ids[left]] : ANY;
+            id = add(new Expr.Ternary(stack[condition], first, stack[left], second, stack[right]),
+                    TERNARY, ids[condition], ids[left], ids[right], first.type.ordinal(), 0, null, type);
+        }
+        return push(id, condition);
+    }
+
+    @Override
+    public int grouping(int expression){
+        int id = find(GROUPING, ids[expression], NONE, NONE, 0, 0, null);
+        if(id == NONE){
+            id = add(new Expr.Grouping(stack[expression]), GROUPING, ids[expression], NONE, NONE, 0, 0, null,
+                    types[ids[expression]]);
+        }
+        return push(id, expression);
+    }
+
+    @Override
+    public int unary(Token operator, int right){
+        //- only takes numbers and ! takes anything, - is always a number and ! never is
+        boolean minus = operator.type == TokenType.MINUS;
+        int line = minus && types[ids[right]] != NUMBER ? operator.line : 0;
+        int id = find(UNARY, ids[right], NONE, NONE, operator.type.ordinal(), line, null);
+        if(id == NONE){
+            id = add(new Expr.Unary(operator, stack[right]), UNARY, ids[right], NONE, NONE, operator.type.ordinal(),
+                    line, null, minus ? NUMBER : ANY);
+        }
+        return push(id, right);
+    }
+
+    @Override
+    public int literal(Object value){
+        int id = find(LITERAL, NONE, NONE, NONE, 0, 0, value);
+        if(id == NONE){
+            byte type = value instanceof Double ? NUMBER : value instanceof String ? STRING : ANY;
+            id = add(new Expr.Literal(value), LITERAL, NONE, NONE, NONE, 0, 0, value, type);
+        }
+        return push(id, size);
+    }
+
+    Expr get(int handle){
+        return stack[handle];
+    }
+
+    /**
+     * the operator nodes that occur more than once in the tree
+     */
+    Set<Expr> shared(){
+        return shared;
+    }
+
+    /**
+     * how many distinct nodes the tree is made of
+     */
+    int distinct(){
+        return count;
+    }
+
+    /**
+     * the id of the node with this key, NONE if there is none yet
+     */
+    private int find(int kind, int first, int second, int third, int operator, int line, Object value){
+        int mask = table.length - 1;
+        for(int slot = hash(kind, first, second, third, operator, line, value) & mask; table[slot] != 0;
+            slot = (slot + 1) & mask){
+            int id = table[slot] - 1;
+            //Double.equals tells 0 and -0 apart, so they stay two literals
+            if(kinds[id] == kind && children[id * 3] == first && children[id * 3 + 1] == second
+                    && children[id * 3 + 2] == third && operators[id] == operator && lines[id] == line
+                    && Objects.equals(values[id], value)){
+                if(kind != LITERAL){
+                    shared.add(nodes[id]);
+                }
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private int add(Expr node, int kind, int first, int second, int third, int operator, int line, Object value,
+                    byte type){
+        if(count == nodes.length){
+            int capacity = count * 2;
+            nodes = Arrays.copyOf(nodes, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            children = Arrays.copyOf(children, capacity * 3);
+            operators = Arrays.copyOf(operators, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+            types = Arrays.copyOf(types, capacity);
+        }
+        int id = count++;
+        nodes[id] = node;
+        kinds[id] = (byte) kind;
+        children[id * 3] = first;
+        children[id * 3 + 1] = second;
+        children[id * 3 + 2] = third;
+        operators[id] = operator;
+        lines[id] = line;
+        values[id] = value;
+        types[id] = type;
+
+        //kept at most half full
+        if(count * 2 > table.length){
+            table = new int[table.length * 2];
+            for(int i = 0; i < count; i++){
+                insert(i);
+            }
+        }else {
+            insert(id);
+        }
+        return id;
+    }
+
+    private void insert(int id){
+        int mask = table.length - 1;
+        int slot = hash(kinds[id], children[id * 3], children[id * 3 + 1], children[id * 3 + 2], operators[id],
+                lines[id], values[id]) & mask;
+        while(table[slot] != 0){
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private static int hash(int kind, int first, int second, int third, int operator, int line, Object value){
+        int hash = kind;
+        hash = hash * 31 + first;
+        hash = hash * 31 + second;
+        hash = hash * 31 + third;
+        hash = hash * 31 + operator;
+        hash = hash * 31 + line;
+        hash = hash * 31 + Objects.hashCode(value);
+        //spread the bits, the table only looks at the low ones
+        return hash ^ (hash >>> 16) ^ (hash * 0x9E3779B9 >>> 7);
+    }
+
+    /**
+     * whether the binary operator can fail on operands of these types, the way Interpreter.binary checks them
+     */
+    private static boolean canFail(TokenType operator, byte left, byte right){
+        switch (operator){
+            case COMMA, AND, OR, EQUAL_EQUAL, BANG_EQUAL -> {return false;}
+            case PLUS -> {return left != right || left == ANY;}
+        }
+        return left != NUMBER || right != NUMBER;
+    }
+
+    /**
+     * what the binary operator evaluates to when it doesn't fail
+     */
+    private static byte type(TokenType operator, byte left, byte right){
+        switch (operator){
+            case COMMA -> {return right;}
+            case AND, OR, PLUS -> {return left == right ? left : ANY;}
+            case MINUS, STAR, SLASH -> {return NUMBER;}
+        }
+        //comparisons
+        return ANY;
+    }
+
+    private int push(int id, int handle){
+        if(handle == stack.length){
+            stack = Arrays.copyOf(stack, handle * 2);
+            ids = Arrays.copyOf(ids, handle * 2);
+        }
+        stack[handle] = nodes[id];
+        ids[handle] = id;
+        size = handle + 1;
+        return handle;
+    }
+}
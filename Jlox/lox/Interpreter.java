@@ -1,14 +1,50 @@
 package lox;
 
 
-public class Interpreter implements Expr.Visitor<Object>{
+public class Interpreter implements Expr.Visitor<Object>, ExprArena.Visitor<Object>{
 
-   private Object evaluate(Expr expr){
+   Object evaluate(Expr expr){
        return expr.accept(this);
    }
 
-   private boolean isTruthy(Object obj){
-      if(obj == null || obj instanceof String && ((String) obj).isEmpty()){
+   /**
+    * the same walk over the sealed records, dispatching with type patterns instead of accept().
+    * Java 17 only has patterns in instanceof, the records being final keeps every test a cheap class check
+    */
+   Object evaluate(SealedExpr expr){
+       if(expr instanceof SealedExpr.Binary binary){
+           Object left = evaluate(binary.left());
+           if(isLogical(binary.operator().type)){
+               return shortCircuits(binary.operator().type, left) ? left : evaluate(binary.right());
+           }
+           Object right = evaluate(binary.right());
+
+           Object value = binary(binary.operator().type, left, right);
+           if(value == INVALID_OPERANDS){
+               throw binaryError(binary.operator());
+           }
+           return value;
+       }else if(expr instanceof SealedExpr.Literal literal){
+           return literal.value();
+       }else if(expr instanceof SealedExpr.Unary unary){
+           Object right = evaluate(unary.right());
+
+           Object value = unary(unary.operator().type, right);
+           if(value == INVALID_OPERANDS){
+               throw unaryError(unary.operator());
+           }
+           return value;
+       }else if(expr instanceof SealedExpr.Grouping grouping){
+           return evaluate(grouping.expression());
+       }else if(expr instanceof SealedExpr.Ternary ternary){
+           return isTruthy(evaluate(ternary.condition())) ? evaluate(ternary.left()) : evaluate(ternary.right());
+       }
+       throw new IllegalStateException("unknown node " + expr);
+   }
+
+   static boolean isTruthy(Object obj){
+      //strings and ropes, a rope knows its length without being flattened
+      if(obj == null || obj instanceof CharSequence && ((CharSequence) obj).length() == 0){
           return false;
       }else if (obj instanceof Boolean){
           return (boolean)obj;
@@ -16,6 +52,60 @@ public class Interpreter implements Expr.Visitor<Object>{
           return true;
       }
    }
+
+   static boolean isLogical(TokenType operator){
+       return operator == TokenType.AND || operator == TokenType.OR;
+   }
+
+   /**
+    * whether the left operand of an and / or decides it, the left value is then the result and the right operand
+    * must not be evaluated. Otherwise the result is the right operand's value
+    */
+   static boolean shortCircuits(TokenType operator, Object left){
+       return isTruthy(left) != (operator == TokenType.AND);
+   }
+
+   static boolean isEqual(Object left, Object right){
+       if(left == null){
+           return right == null;
+       }
+       //a rope equals the string it spells
+       if(left instanceof Rope || right instanceof Rope){
+           return left instanceof CharSequence && right instanceof CharSequence
+                   && left.toString().equals(right.toString());
+       }
+       return left.equals(right);
+   }
+
+   //returned by the operator helpers when the operands have the wrong type
+   static final Object INVALID_OPERANDS = new Object();
+
+   //what number() leaves in boxed when the value really was a number
+   private static final Object NUMBER = new Object();
+   private Object boxed;
+
+   static RuntimeError unaryError(Token operator){
+       return new RuntimeError(operator, "Operand must be a number.");
+   }
+
+   static RuntimeError binaryError(Token operator){
+       if(operator.type == TokenType.PLUS){
+           return new RuntimeError(operator, "Operands must be two numbers or two strings.");
+       }
+       return new RuntimeError(operator, "Operands must be numbers.");
+   }
+
+   static String stringify(Object obj){
+       if(obj == null){
+           return "nil";
+       }
+       if(obj instanceof Double){
+           //Lox has no integers, so 2.0 is printed as 2
+           return DoubleFormatter.lox((double) obj);
+       }
+       return obj.toString();
+   }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -26,25 +116,284 @@ public class Interpreter implements Expr.Visitor<Object>{
        return evaluate(expr.expression);
     }
 
+    @Override
+    public Object visitTernaryExpr(Expr.Ternary expr) {
+       return isTruthy(evaluate(expr.condition)) ? evaluate(expr.left) : evaluate(expr.right);
+    }
+
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+       if(expr.operator.type == TokenType.MINUS){
+           double right = number(expr.right);
+           if(boxed != NUMBER){
+               throw unaryError(expr.operator);
+           }
+           return -right;
+       }
+
        Object right = evaluate(expr.right);
 
-       switch (expr.operator.type){
-           case MINUS -> {return - (Double)right;}
-           case BANG -> {return ! isTruthy(right)}
+       Object value = unary(expr.operator.type, right);
+       if(value == INVALID_OPERANDS){
+           throw unaryError(expr.operator);
        }
+       return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
 
+       switch (expr.operator.type){
+           case PLUS, MINUS, STAR, SLASH -> {
+               //the whole arithmetic subtree is computed unboxed, the result is only boxed here
+               double value = arithmetic(expr);
+               return boxed == NUMBER ? (Object) value : boxed;
+           }
+           case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+               double left = number(expr.left);
+               Object leftBoxed = boxed;
+               double right = number(expr.right);
+               if(leftBoxed != NUMBER || boxed != NUMBER){
+                   throw binaryError(expr.operator);
+               }
+               return compare(expr.operator.type, left, right);
+           }
+           case COMMA -> {
+               //the left side only runs for its errors, its value is dropped as is
+               evaluate(expr.left);
+               return evaluate(expr.right);
+           }
+           case AND, OR -> {
+               Object left = evaluate(expr.left);
+               return shortCircuits(expr.operator.type, left) ? left : evaluate(expr.right);
+           }
+       }
+
        //having left first can affect side-effects, think of the if(l==NULL && l->a==NULL) check in C
        Object left = evaluate(expr.left);
        Object right = evaluate(expr.right);
 
-       switch (expr.operator.type){
+       Object value = binary(expr.operator.type, left, right);
+       if(value == INVALID_OPERANDS){
+           throw binaryError(expr.operator);
+       }
+       return value;
+    }
+
+    /**
+     * evaluates expr keeping doubles unboxed through nested arithmetic, negation and grouping. Anything else is
+     * evaluated normally and unboxed. When the value isn't a number it is left in boxed (and NaN returned),
+     * otherwise boxed is set to NUMBER
+     */
+    private double number(Expr expr){
+       if(expr instanceof Expr.Literal literal){
+           if(literal.value instanceof Double){
+               boxed = NUMBER;
+               return (double) literal.value;
+           }
+           boxed = literal.value;
+           return Double.NaN;
+       }else if(expr instanceof Expr.Grouping grouping){
+           return number(grouping.expression);
+       }else if(expr instanceof Expr.Unary unary && unary.operator.type == TokenType.MINUS){
+           double right = number(unary.right);
+           if(boxed != NUMBER){
+               throw unaryError(unary.operator);
+           }
+           return -right;
+       }else if(expr instanceof Expr.Binary binary){
+           switch (binary.operator.type){
+               case PLUS, MINUS, STAR, SLASH -> {return arithmetic(binary);}
+           }
+       }
+
+       Object value = evaluate(expr);
+       if(value instanceof Double){
+           boxed = NUMBER;
+           return (double) value;
+       }
+       boxed = value;
+       return Double.NaN;
+    }
+
+    /**
+     * + - * / with both operands read through number(). Only when one of them isn't a number are the operands
+     * boxed, for string concatenation or the error
+     */
+    private double arithmetic(Expr.Binary expr){
+       double left = number(expr.left);
+       Object leftBoxed = boxed;
+       double right = number(expr.right);
+       Object rightBoxed = boxed;
+
+       if(leftBoxed == NUMBER && rightBoxed == NUMBER){
+           boxed = NUMBER;
+           switch (expr.operator.type){
+               case PLUS -> {return left + right;}
+               case MINUS -> {return left - right;}
+               case STAR -> {return left * right;}
+               default -> {return left / right;}
+           }
+       }
+
+       Object value = binary(expr.operator.type, leftBoxed == NUMBER ? (Object) left : leftBoxed,
+               rightBoxed == NUMBER ? (Object) right : rightBoxed);
+       if(value == INVALID_OPERANDS){
+           throw binaryError(expr.operator);
+       }
+       boxed = value;
+       return Double.NaN;
+    }
 
+    static boolean compare(TokenType operator, double left, double right){
+       switch (operator){
+           case GREATER -> {return left > right;}
+           case GREATER_EQUAL -> {return left >= right;}
+           case LESS -> {return left < right;}
+           default -> {return left <= right;}
        }
     }
+
+    /**
+     * the operator semantics, shared by the tree and arena walks. Only the operator's type is needed here, the
+     * caller turns INVALID_OPERANDS into a RuntimeError pointing at the operator's token
+     */
+    static Object unary(TokenType operator, Object right){
+       switch (operator){
+           case MINUS -> {
+               if(!(right instanceof Double)){
+                   return INVALID_OPERANDS;
+               }
+               return - (Double)right;
+           }
+           case BANG -> {return ! isTruthy(right);}
+       }
+       //unreachable, the parser only builds unary nodes for - and !
+       return null;
+    }
+
+    static Object binary(TokenType operator, Object left, Object right){
+       switch (operator){
+           case COMMA -> {return right;}
+           //for callers that already have both values, the walks short-circuit before evaluating right
+           case AND, OR -> {return shortCircuits(operator, left) ? left : right;}
+
+           case EQUAL_EQUAL -> {return isEqual(left, right);}
+           case BANG_EQUAL -> {return !isEqual(left, right);}
+
+           case PLUS -> {
+               if(left instanceof Double && right instanceof Double){
+                   return (double)left + (double)right;
+               }
+               if(left instanceof CharSequence && right instanceof CharSequence){
+                   //joined lazily, copying the string at every + of a long chain would be quadratic
+                   return Rope.concat((CharSequence)left, (CharSequence)right);
+               }
+               return INVALID_OPERANDS;
+           }
+       }
+
+       //everything else only works on numbers
+       if(!(left instanceof Double) || !(right instanceof Double)){
+           return INVALID_OPERANDS;
+       }
+       double l = (double)left;
+       double r = (double)right;
+
+       switch (operator){
+           case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {return compare(operator, l, r);}
+           case MINUS -> {return l - r;}
+           case STAR -> {return l * r;}
+           case SLASH -> {return l / r;}
+       }
+       //unreachable, the parser only builds binary nodes for the operators above
+       return null;
+    }
+
+    /**
+     * evaluation does not depend on the order the operands are read in, so RPN is the same walk
+     */
+    @Override
+    public Object BinaryRPN(Expr.Binary expr) {
+        return visitBinaryExpr(expr);
+    }
+    @Override
+    public Object TernaryRPN(Expr.Ternary expr) {
+        return visitTernaryExpr(expr);
+    }
+    @Override
+    public Object GroupingRPN(Expr.Grouping expr) {
+        return visitGroupingExpr(expr);
+    }
+    @Override
+    public Object UnaryRPN(Expr.Unary expr) {
+        return visitUnaryExpr(expr);
+    }
+    @Override
+    public Object LiteralRPN(Expr.Literal expr) {
+        return visitLiteralExpr(expr);
+    }
+
+
+    /**
+     * the same walk over a flat ExprArena
+     */
+    @Override
+    public Object visitBinaryNode(ExprArena arena, int node) {
+        Object left = arena.accept(arena.binaryLeft(node), this);
+        TokenType operator = arena.binaryOperatorType(node);
+        if(isLogical(operator)){
+            return shortCircuits(operator, left) ? left : arena.accept(arena.binaryRight(node), this);
+        }
+        Object right = arena.accept(arena.binaryRight(node), this);
+
+        Object value = binary(operator, left, right);
+        if(value == INVALID_OPERANDS){
+            throw binaryError(arena.binaryOperator(node));
+        }
+        return value;
+    }
+    @Override
+    public Object visitTernaryNode(ExprArena arena, int node) {
+        return isTruthy(arena.accept(arena.ternaryCondition(node), this)) ?
+                arena.accept(arena.ternaryLeft(node), this) : arena.accept(arena.ternaryRight(node), this);
+    }
+    @Override
+    public Object visitGroupingNode(ExprArena arena, int node) {
+        return arena.accept(arena.groupingExpression(node), this);
+    }
+    @Override
+    public Object visitUnaryNode(ExprArena arena, int node) {
+        Object right = arena.accept(arena.unaryRight(node), this);
+
+        Object value = unary(arena.unaryOperatorType(node), right);
+        if(value == INVALID_OPERANDS){
+            throw unaryError(arena.unaryOperator(node));
+        }
+        return value;
+    }
+    @Override
+    public Object visitLiteralNode(ExprArena arena, int node) {
+        return arena.literalValue(node);
+    }
+    @Override
+    public Object BinaryNodeRPN(ExprArena arena, int node) {
+        return visitBinaryNode(arena, node);
+    }
+    @Override
+    public Object TernaryNodeRPN(ExprArena arena, int node) {
+        return visitTernaryNode(arena, node);
+    }
+    @Override
+    public Object GroupingNodeRPN(ExprArena arena, int node) {
+        return visitGroupingNode(arena, node);
+    }
+    @Override
+    public Object UnaryNodeRPN(ExprArena arena, int node) {
+        return visitUnaryNode(arena, node);
+    }
+    @Override
+    public Object LiteralNodeRPN(ExprArena arena, int node) {
+        return visitLiteralNode(arena, node);
+    }
 }
@@ -0,0 +1,449 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles an Expr into a hidden JVM class with a single static evaluate() method. Only trees whose types are known
+ * before running them are compiled, numbers and booleans all the way down, so numbers stay primitive doubles on the
+ * operand stack and the compiled code can never raise a RuntimeError. Every other tree is left to the Interpreter.
+ * The class file is version 49 so the verifier doesn't ask for stack map frames
+ */
+final class JvmCompiler implements Expr.Visitor<JvmCompiler.Type> {
+
+    //the static type of a compiled subtree, visiting returns null when the subtree has no static type
+    enum Type {
+        NUMBER, BOOLEAN
+    }
+
+    private static final int CLASS_VERSION = 49;
+    //keeps every branch offset inside a signed 16 bit operand
+    private static final int MAX_CODE = Short.MAX_VALUE;
+
+    //constant pool tags
+    private static final int UTF8 = 1;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_REF = 10;
+
+    //the opcodes the compiler emits
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int LDC2_W = 0x14;
+    private static final int POP = 0x57;
+    private static final int POP2 = 0x58;
+    private static final int DUP = 0x59;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int IXOR = 0x82;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final MethodType EVALUATE = MethodType.methodType(Object.class);
+
+    private final Map<List<Object>, Integer> constants = new HashMap<>();
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolSize = 1;
+
+    private byte[] code = new byte[256];
+    private int length;
+    private int stack;
+    private int maxStack;
+
+    private JvmCompiler(){}
+
+    /**
+     * a handle to the compiled static evaluate()Object, or null when expr can't be compiled
+     */
+    static MethodHandle compile(Expr expr){
+        JvmCompiler compiler = new JvmCompiler();
+        Type type = expr.accept(compiler);
+        if(type == null){
+            return null;
+        }
+
+        if(type == Type.NUMBER){
+            compiler.invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+        }else {
+            compiler.invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", 0);
+        }
+        compiler.emit(ARETURN, -1);
+        if(compiler.length > MAX_CODE || compiler.poolSize > 0xffff){
+            return null;
+        }
+
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(compiler.classFile(), true);
+            return lookup.findStatic(lookup.lookupClass(), "evaluate", EVALUATE);
+        }catch (IllegalAccessException | NoSuchMethodException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr){
+        if(expr.value instanceof Double number){
+            //-0.0 has to come from the pool, dconst_0 would lose the sign
+            if(Double.doubleToRawLongBits(number) == 0){
+                emit(DCONST_0, 2);
+            }else if(number == 1){
+                emit(DCONST_1, 2);
+            }else {
+                emit(LDC2_W, 2);
+                u2(constant(DOUBLE, number));
+            }
+            return Type.NUMBER;
+        }
+        if(expr.value instanceof Boolean bool){
+            emit(bool ? ICONST_1 : ICONST_0, 1);
+            return Type.BOOLEAN;
+        }
+        return null;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr){
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr){
+        Type right = expr.right.accept(this);
+        if(right == null){
+            return null;
+        }
+
+        if(expr.operator.type == TokenType.MINUS){
+            if(right != Type.NUMBER){
+                return null;
+            }
+            emit(DNEG, 0);
+            return Type.NUMBER;
+        }
+        //a number is always truthy
+        if(right == Type.NUMBER){
+            emit(POP2, -2);
+            emit(ICONST_0, 1);
+        }else {
+            emit(ICONST_1, 1);
+            emit(IXOR, -1);
+        }
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visitTernaryExpr(Expr.Ternary expr){
+        Type condition = expr.condition.accept(this);
+        if(condition == null){
+            return null;
+        }
+
+        //only a boolean condition can be false
+        if(condition == Type.NUMBER){
+            emit(POP2, -2);
+            return expr.left.accept(this);
+        }
+
+        int toElse = jump(IFEQ, -1);
+        int before = stack;
+        Type left = expr.left.accept(this);
+        int toEnd = jump(GOTO, 0);
+        patch(toElse);
+        stack = before;
+        Type right = expr.right.accept(this);
+        patch(toEnd);
+
+        return left != null && left == right ? left : null;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr){
+        Type left = expr.left.accept(this);
+        if(left == null){
+            return null;
+        }
+        if(expr.operator.type == TokenType.COMMA){
+            emit(left == Type.NUMBER ? POP2 : POP, left == Type.NUMBER ? -2 : -1);
+            return expr.right.accept(this);
+        }
+        if(Interpreter.isLogical(expr.operator.type)){
+            return logical(expr, left);
+        }
+
+        Type right = expr.right.accept(this);
+        if(right != left){
+            return null;
+        }
+
+        switch (expr.operator.type){
+            case EQUAL_EQUAL, BANG_EQUAL -> {
+                boolean equal = expr.operator.type == TokenType.EQUAL_EQUAL;
+                //Double.compare is zero exactly when Double.equals is true, so NaN == NaN like in the Interpreter
+                if(left == Type.NUMBER){
+                    invokeStatic("java/lang/Double", "compare", "(DD)I", -3);
+                    return condition(equal ? IFNE : IFEQ, -1);
+                }
+                return condition(equal ? IF_ICMPNE : IF_ICMPEQ, -2);
+            }
+        }
+
+        if(left != Type.NUMBER){
+            return null;
+        }
+        switch (expr.operator.type){
+            case PLUS -> emit(DADD, -2);
+            case MINUS -> emit(DSUB, -2);
+            case STAR -> emit(DMUL, -2);
+            case SLASH -> emit(DDIV, -2);
+            //dcmpl and dcmpg push the value that makes the jump to false taken when either side is NaN
+            case GREATER -> {
+                emit(DCMPL, -3);
+                return condition(IFLE, -1);
+            }
+            case GREATER_EQUAL -> {
+                emit(DCMPL, -3);
+                return condition(IFLT, -1);
+            }
+            case LESS -> {
+                emit(DCMPG, -3);
+                return condition(IFGE, -1);
+            }
+            default -> {
+                emit(DCMPG, -3);
+                return condition(IFGT, -1);
+            }
+        }
+        return Type.NUMBER;
+    }
+
+    /**
+     * and / or with the left operand already on the stack. A number is always truthy, so it decides the operator
+     * without any code. A boolean is duplicated for the test and kept as the result when it decides, otherwise it
+     * is dropped for the right operand, which then has to be a boolean too
+     */
+    private Type logical(Expr.Binary expr, Type left){
+        boolean and = expr.operator.type == TokenType.AND;
+        if(left == Type.NUMBER){
+            if(!and){
+                return Type.NUMBER;
+            }
+            emit(POP2, -2);
+            return expr.right.accept(this);
+        }
+
+        emit(DUP, 1);
+        int toEnd = jump(and ? IFEQ : IFNE, -1);
+        emit(POP, -1);
+        Type right = expr.right.accept(this);
+        patch(toEnd);
+        return right == Type.BOOLEAN ? right : null;
+    }
+
+    /**
+     * pushes false when the jump is taken, true otherwise
+     */
+    private Type condition(int jumpToFalse, int effect){
+        int toFalse = jump(jumpToFalse, effect);
+        emit(ICONST_1, 1);
+        int toEnd = jump(GOTO, 0);
+        patch(toFalse);
+        stack--;
+        emit(ICONST_0, 1);
+        patch(toEnd);
+        return Type.BOOLEAN;
+    }
+
+    /**
+     * the compiler doesn't care which walk reached the node, so RPN is the same walk
+     */
+    @Override
+    public Type BinaryRPN(Expr.Binary expr){
+        return visitBinaryExpr(expr);
+    }
+    @Override
+    public Type TernaryRPN(Expr.Ternary expr){
+        return visitTernaryExpr(expr);
+    }
+    @Override
+    public Type GroupingRPN(Expr.Grouping expr){
+        return visitGroupingExpr(expr);
+    }
+    @Override
+    public Type UnaryRPN(Expr.Unary expr){
+        return visitUnaryExpr(expr);
+    }
+    @Override
+    public Type LiteralRPN(Expr.Literal expr){
+        return visitLiteralExpr(expr);
+    }
+
+    /**
+     * emits an instruction and moves the stack depth by effect, in slots
+     */
+    private void emit(int opcode, int effect){
+        u1(opcode);
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor, int effect){
+        emit(INVOKESTATIC, effect);
+        u2(methodRef(owner, name, descriptor));
+    }
+
+    /**
+     * emits a branch with a placeholder offset, returns where the branch is so patch can point it at the next
+     * instruction
+     */
+    private int jump(int opcode, int effect){
+        int at = length;
+        emit(opcode, effect);
+        u2(0);
+        return at;
+    }
+
+    private void patch(int at){
+        int offset = length - at;
+        code[at + 1] = (byte) (offset >> 8);
+        code[at + 2] = (byte) offset;
+    }
+
+    private void u1(int value){
+        if(length == code.length){
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = (byte) value;
+    }
+
+    private void u2(int value){
+        u1(value >> 8);
+        u1(value);
+    }
+
+    /**
+     * the pool index of a constant, adding it the first time it is asked for. Doubles take two slots
+     */
+    private int constant(int tag, Object... value){
+        List<Object> key = List.of(tag, List.of(value));
+        Integer index = constants.get(key);
+        if(index != null){
+            return index;
+        }
+
+        try{
+            switch (tag){
+                case UTF8 -> {
+                    pool.writeByte(UTF8);
+                    pool.writeUTF((String) value[0]);
+                }
+                case DOUBLE -> {
+                    pool.writeByte(DOUBLE);
+                    pool.writeDouble((double) value[0]);
+                }
+                case CLASS -> {
+                    int name = constant(UTF8, value);
+                    pool.writeByte(CLASS);
+                    pool.writeShort(name);
+                }
+                case NAME_AND_TYPE -> {
+                    int name = constant(UTF8, value[0]);
+                    int descriptor = constant(UTF8, value[1]);
+                    pool.writeByte(NAME_AND_TYPE);
+                    pool.writeShort(name);
+                    pool.writeShort(descriptor);
+                }
+                default -> {
+                    int owner = constant(CLASS, value[0]);
+                    int nameAndType = constant(NAME_AND_TYPE, value[1], value[2]);
+                    pool.writeByte(METHOD_REF);
+                    pool.writeShort(owner);
+                    pool.writeShort(nameAndType);
+                }
+            }
+        }catch (IOException e){
+            throw new IllegalStateException(e);
+        }
+
+        index = poolSize;
+        poolSize += tag == DOUBLE ? 2 : 1;
+        constants.put(key, index);
+        return index;
+    }
+
+    private int methodRef(String owner, String name, String descriptor){
+        return constant(METHOD_REF, owner, name, descriptor);
+    }
+
+    private byte[] classFile(){
+        int thisClass = constant(CLASS, "lox/CompiledExpr");
+        int superClass = constant(CLASS, "java/lang/Object");
+        int name = constant(UTF8, "evaluate");
+        int descriptor = constant(UTF8, "()Ljava/lang/Object;");
+        int codeAttribute = constant(UTF8, "Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try{
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+
+            //final super class, no interfaces or fields
+            out.writeShort(0x0030);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            //public static Object evaluate()
+            out.writeShort(1);
+            out.writeShort(0x0009);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(0);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            //no exception table or code attributes
+            out.writeShort(0);
+            out.writeShort(0);
+
+            //no class attributes
+            out.writeShort(0);
+        }catch (IOException e){
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
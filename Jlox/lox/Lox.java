@@ -3,22 +3,99 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class Lox {
-	static boolean hadError = false;
+	static boolean parallelScan = false;
+	static boolean mapFiles = false;
+	static boolean useArena = false;
+	static boolean useSealed = false;
+	static boolean useVm = false;
+	static boolean useClosures = false;
+	static boolean useJvm = false;
+	static boolean useSpecializing = false;
+	static boolean memoize = false;
+	static boolean iterative = false;
+	static boolean useCache = false;
+	static boolean pipelined = false;
+	//where --cache keeps parsed trees, -Dlox.cache=<dir> to move it
+	static final Path cacheDirectory = Paths.get(System.getProperty("lox.cache",
+			Paths.get(System.getProperty("user.home"), ".cache", "jlox").toString()));
 
 	public static void main(String[] args) throws IOException{
 
+		String serverAddress = null;
+		boolean batch = false;
+		int index = 0;
+		while(index < args.length && args[index].startsWith("--")){
+			switch (args[index]){
+				case "--parallel-scan" -> parallelScan = true;
+				case "--mmap" -> mapFiles = true;
+				case "--arena" -> useArena = true;
+				case "--sealed" -> useSealed = true;
+				case "--vm" -> useVm = true;
+				case "--closures" -> useClosures = true;
+				case "--jvm" -> useJvm = true;
+				case "--specialize" -> useSpecializing = true;
+				case "--memoize" -> memoize = true;
+				case "--iterative" -> iterative = true;
+				case "--cache" -> useCache = true;
+				case "--pipeline" -> pipelined = true;
+				case "--server" -> {
+					if(++index == args.length){
+						System.out.println("--server needs a socket path or a port");
+						System.exit(64);
+					}
+					serverAddress = args[index];
+				}
+				case "--batch" -> batch = true;
+				default -> {
+					System.out.println("Unknown option " + args[index]);
+					System.exit(64);
+				}
+			}
+			index++;
+		}
+
+		//the pipeline parses statement by statement into Expr trees, a whole file's tree can't be cached or built
+		//into an arena or sealed records without dropping every statement after the first
+		if(pipelined && (useCache || useArena || useSealed)){
+			System.out.println("--pipeline can't be combined with --cache, --arena or --sealed");
+			System.exit(64);
+		}
 
-		if(args.length>1){
+		if(serverAddress != null){
+			if(args.length > index){
+				System.out.println("A server reads its code from its clients, not from a file");
+				System.exit(64);
+			}
+			LoxServer server = null;
+			try{
+				server = LoxServer.open(serverAddress);
+			}catch (FileAlreadyExistsException e){
+				System.out.println("Can't serve on " + e.getMessage());
+				System.exit(64);
+			}
+			server.serve();
+		}else if(batch){
+			if(args.length == index){
+				System.out.println("Must input the paths or globs of the files to run");
+				System.exit(64);
+			}
+			System.exit(LoxBatch.run(Arrays.asList(args).subList(index, args.length)));
+		}else if(args.length - index>1){
 			System.out.println("Must input a path to the text file containing the Lox code");
 			System.exit(64);
-		}else if(args.length ==1){
-			runFile(args[0]);
+		}else if(args.length - index ==1){
+			runFile(args[index]);
 		}else{
 			runPrompt();
 		}
@@ -26,14 +103,64 @@ public class Lox {
 	}
 
 	public static void runFile(String path) throws IOException{
+		Diagnostics diagnostics = new Diagnostics(System.err);
+		try{
+			runFile(Paths.get(path), System.out, diagnostics);
+		}catch (StackOverflowError e){
+			diagnostics.stackOverflow();
+		}
 
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()));
+		if(diagnostics.exitCode() != 0){
+			System.exit(diagnostics.exitCode());
+		}
 	}
 
-	public static void runPrompt() throws IOException{
+	/**
+	 * runs one file, printing to out
+	 */
+	static void runFile(Path path, PrintStream out, Diagnostics diagnostics) throws IOException{
+		//the arena and the sealed records are built by the parser, only Expr trees are cached
+		if(useCache && !useArena && !useSealed){
+			runCached(path, out, diagnostics);
+			return;
+		}
+
+		CharSequence source = mapFiles ? MappedSource.map(path)
+				: new String(Files.readAllBytes(path), Charset.defaultCharset());
+		//main() refuses --pipeline together with the options above
+		if(pipelined){
+			new Pipeline(source, out, diagnostics).run();
+		}else{
+			run(source, out, diagnostics);
+		}
+	}
+
+	/**
+	 * loads the file's tree from the parse cache, only scanning and parsing the file when it isn't there yet.
+	 * The bytes are read onto the heap either way, they are what the cache is keyed on
+	 */
+	private static void runCached(Path path, PrintStream out, Diagnostics diagnostics) throws IOException{
+		byte[] bytes = Files.readAllBytes(path);
+		ParseCache cache = new ParseCache(cacheDirectory);
+		String key = ParseCache.key(bytes, Charset.defaultCharset());
+
+		Parsed parsed = cache.load(key);
+		if(parsed != null){
+			evaluate(parsed.tree(), parsed.shared(), out, diagnostics);
+			return;
+		}
+
+		HashConsBuilder nodes = new HashConsBuilder();
+		int root = parse(new String(bytes, Charset.defaultCharset()), nodes, diagnostics);
+		if(diagnostics.hadError()){
+			return;
+		}
+		parsed = new Parsed(nodes.get(root), nodes.shared());
+		cache.store(key, parsed);
+		evaluate(parsed.tree(), parsed.shared(), out, diagnostics);
+	}
 
-		hadError = false;
+	public static void runPrompt() throws IOException{
 
 		InputStreamReader in = new InputStreamReader(System.in);
 		BufferedReader reader = new BufferedReader(in);
@@ -44,42 +171,176 @@ public class Lox {
 			if(line == null){
 				break;
 			}
+			//every line is a run of its own, an error in one doesn't end the session
 			run(line);
 		}
 	}
 
-	public static void run(String source){
-		if(hadError){
-			System.exit(65);
+	public static void run(CharSequence source){
+		Diagnostics diagnostics = new Diagnostics(System.err);
+		try{
+			run(source, System.out, diagnostics);
+		}catch (StackOverflowError e){
+			diagnostics.stackOverflow();
 		}
+	}
 
-		Scanner scanner = new Scanner(source);
-		List<Token> tokens = scanner.scanTokens();
+	/**
+	 * scans, parses and evaluates source, printing the tree and its value to out
+	 * @param diagnostics where this run's errors go, the caller checks it afterwards
+	 */
+	static void run(CharSequence source, PrintStream out, Diagnostics diagnostics){
+		if(useArena){
+			ExprArena arena = new ExprArena();
+			int root = parse(source, arena, diagnostics);
 
-		Parser parser= new Parser(tokens);
-		Expr result = parser.parse();
+			if(diagnostics.hadError()){
+				return;
+			}
 
-		if(hadError){
+			new AstPrinter().print(arena, root, out);
+			out.println();
+			Interpreter interpreter = new Interpreter();
+			print(() -> value(() -> arena.accept(root, interpreter), () -> exprTree(source, diagnostics)), out,
+					diagnostics);
 			return;
 		}
 
-		System.out.println(new AstPrinter().print(result));
+		if(useSealed){
+			SealedExpr.TreeBuilder tree = new SealedExpr.TreeBuilder();
+			int root = parse(source, tree, diagnostics);
+
+			if(diagnostics.hadError()){
+				return;
+			}
+
+			new AstPrinter().print(tree.get(root), out);
+			out.println();
+			Interpreter interpreter = new Interpreter();
+			print(() -> value(() -> interpreter.evaluate(tree.get(root)), () -> exprTree(source, diagnostics)), out,
+					diagnostics);
+			return;
+		}
+
+		Parsed parsed = parseTree(parser(source, diagnostics));
+
+		if(diagnostics.hadError()){
+			return;
+		}
+
+		evaluate(parsed.tree(), parsed.shared(), out, diagnostics);
 	}
 
-	public static void error(int line, String message){
-		report(line, "", message);
+	/**
+	 * @return the builder's handle of the root, Parser.NO_NODE after a syntax error
+	 */
+	static int parse(CharSequence source, Expr.Builder builder, Diagnostics diagnostics){
+		return parser(source, diagnostics).parse(builder);
 	}
-	public static void error(Token token, String message){
-		if(token.type == TokenType.EOF){
-			report(token.line, "end of the line", message);
-		}else{
-			report(token.line, "at '"+token.lexeme+"'", message);
+
+	static Parser parser(CharSequence source, Diagnostics diagnostics){
+		TokenStream tokens = parallelScan ? new ParallelScanner(source, diagnostics).scanTokens().stream()
+				: new TokenStream(new Scanner(source, diagnostics));
+		return new Parser(tokens, diagnostics);
+	}
+
+	/**
+	 * parses into an Expr tree. Repeated subexpressions are only shared for --memoize, which evaluates them once,
+	 * interning costs every other backend more than it saves
+	 * @return the tree and its shared nodes, null after a syntax error
+	 */
+	static Parsed parseTree(Parser parser){
+		if(memoize){
+			HashConsBuilder nodes = new HashConsBuilder();
+			int root = parser.parse(nodes);
+			return root == Parser.NO_NODE ? null : new Parsed(nodes.get(root), nodes.shared());
 		}
+		Expr.TreeBuilder tree = new Expr.TreeBuilder();
+		int root = parser.parse(tree);
+		return root == Parser.NO_NODE ? null : new Parsed(tree.get(root), Set.of());
+	}
+
+	/**
+	 * prints the tree and evaluates it with the chosen backend
+	 * @param shared the nodes occurring more than once in result, see HashConsBuilder.shared()
+	 */
+	static void evaluate(Expr result, Set<Expr> shared, PrintStream out, Diagnostics diagnostics){
+		evaluate(result, shared, new AstPrinter(), out, diagnostics);
+	}
+
+	/**
+	 * @param printer renders the tree, one that is reused keeps its buffers from tree to tree
+	 */
+	static void evaluate(Expr result, Set<Expr> shared, AstPrinter printer, PrintStream out, Diagnostics diagnostics){
+		//streamed, the rendering of a big tree can be far larger than the tree
+		printer.print(result, out);
+		out.println();
+
+		print(() -> value(result, shared), out, diagnostics);
+	}
 
+	private static Object value(Expr result, Set<Expr> shared){
+		return value(() -> walk(result, shared), () -> result);
 	}
-	public static void report(int line, String where, String message){
-		System.err.println("[Line: " +line+ "] Error " +where+ ": "+message);
-		hadError = true;
+
+	/**
+	 * the value walk computes, or the StackEvaluator's when walk recurses deeper than the Java stack goes. Expressions
+	 * have no side effects, so starting over only costs the time the first walk took
+	 * @param tree the expression as an Expr tree, only asked for once walk overflowed
+	 */
+	private static Object value(Supplier<Object> walk, Supplier<Expr> tree){
+		try{
+			return walk.get();
+		}catch (StackOverflowError e){
+			return new StackEvaluator().evaluate(tree.get());
+		}
+	}
+
+	/**
+	 * source parsed again into an Expr tree, for when the arena or the sealed records are too deep to walk
+	 */
+	private static Expr exprTree(CharSequence source, Diagnostics diagnostics){
+		Expr.TreeBuilder tree = new Expr.TreeBuilder();
+		return tree.get(parse(source, tree, diagnostics));
+	}
+
+	/**
+	 * evaluates with the chosen backend, most of them recurse over the tree
+	 */
+	private static Object walk(Expr result, Set<Expr> shared){
+		if(useVm){
+			return new VM().run(new BytecodeCompiler().compile(result));
+		}
+		if(useClosures){
+			return new ClosureCompiler().compile(result).evaluate();
+		}
+		if(useJvm){
+			//a script only runs its expression once, so it goes straight to the compiled tier
+			return new TieredExpr(result, new Interpreter(), 0).evaluate();
+		}
+		if(useSpecializing){
+			return SpecializingNode.build(result).execute();
+		}
+		if(memoize){
+			return new MemoizingEvaluator(shared).run(result);
+		}
+		if(iterative){
+			//the folder recurses, so it is skipped for trees too deep for the Java stack, rather than overflowing first
+			return new StackEvaluator().evaluate(result);
+		}
+		Interpreter interpreter = new Interpreter();
+		return new ConstantFolder(interpreter).fold(result).accept(interpreter);
+	}
+
+	/**
+	 * prints the value, runtime errors are reported instead
+	 */
+	private static void print(Supplier<Object> value, PrintStream out, Diagnostics diagnostics){
+		try{
+			out.println(Interpreter.stringify(value.get()));
+		}catch (RuntimeError error){
+			diagnostics.runtimeError(error);
+		}
 	}
 
 
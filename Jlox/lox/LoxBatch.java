@@ -0,0 +1,159 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs many files in one JVM, started with --batch and any number of paths or globs like 'tests/**.lox'. The files
+ * are run on a pool with a worker per core, each with its own Diagnostics, and printed in the order they were given
+ * as soon as every file before them is done. A file's output comes after a "==> path <==" line, its errors go to
+ * stderr with the path in front of each
+ */
+final class LoxBatch {
+
+    //how many files each worker may run ahead of the one being printed, bounds the output held in memory
+    private static final int AHEAD = 4;
+    //what a file that can't be read exits with, EX_NOINPUT like the 64 and 65 runFile uses
+    private static final int NO_INPUT = 66;
+
+    private LoxBatch(){
+    }
+
+    /**
+     * @param arguments paths and globs, a glob is expanded to its matches sorted by path
+     * @return the exit code of the first file that failed, 0 if none did
+     */
+    static int run(List<String> arguments) throws IOException{
+        List<Path> paths = new ArrayList<>();
+        int status = 0;
+        for(String argument : arguments){
+            if(!isGlob(argument)){
+                paths.add(Paths.get(argument));
+            }else if(!expand(argument, paths)){
+                System.err.println(argument + ": Error: no file matches");
+                status = NO_INPUT;
+            }
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        Deque<Future<Result>> running = new ArrayDeque<>();
+        try{
+            for(Path path : paths){
+                if(running.size() == workers * AHEAD){
+                    status = print(running.poll(), status);
+                }
+                running.add(executor.submit(() -> run(path)));
+            }
+            while(!running.isEmpty()){
+                status = print(running.poll(), status);
+            }
+        }finally {
+            executor.shutdown();
+        }
+        return status;
+    }
+
+    /**
+     * what one file printed and reported, held until it is its turn to be printed
+     */
+    private record Result(Path path, byte[] output, String errors, int status) {}
+
+    private static Result run(Path path){
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(printed);
+        PrintStream err = new PrintStream(errors);
+        Diagnostics diagnostics = new Diagnostics(err);
+
+        int status;
+        try{
+            Lox.runFile(path, out, diagnostics);
+            status = diagnostics.exitCode();
+        }catch (StackOverflowError e){
+            //only this file is lost, the others keep going
+            diagnostics.stackOverflow();
+            status = diagnostics.exitCode();
+        }catch (IOException e){
+            err.println("Error: could not read the file, " + e);
+            status = NO_INPUT;
+        }
+        out.flush();
+        err.flush();
+        return new Result(path, printed.toByteArray(), errors.toString(), status);
+    }
+
+    private static int print(Future<Result> running, int status) throws IOException{
+        Result result;
+        try{
+            result = running.get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running " + running, e);
+        }catch (ExecutionException e){
+            //run() catches what a script can cause, anything else is a bug in the interpreter
+            throw new IllegalStateException(e.getCause());
+        }
+
+        System.out.println("==> " + result.path() + " <==");
+        System.out.write(result.output());
+        System.out.flush();
+        result.errors().lines().forEach(line -> System.err.println(result.path() + ": " + line));
+
+        return status == 0 ? result.status() : status;
+    }
+
+    private static boolean isGlob(String argument){
+        for(char c : "*?[{".toCharArray()){
+            if(argument.indexOf(c) >= 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * adds the regular files matching glob, walking down from the directories in front of its first wildcard
+     * @return whether anything matched
+     */
+    private static boolean expand(String glob, List<Path> paths) throws IOException{
+        Path pattern = Paths.get(glob);
+        Path base = pattern.getRoot() == null ? Paths.get("") : pattern.getRoot();
+        int fixed = 0;
+        for(Path name : pattern){
+            if(isGlob(name.toString())){
+                break;
+            }
+            base = base.resolve(name);
+            fixed++;
+        }
+        if(!Files.isDirectory(base)){
+            return false;
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        //'*' doesn't cross directories, so only '**' needs the whole tree walked
+        int depth = glob.contains("**") ? Integer.MAX_VALUE : pattern.getNameCount() - fixed;
+        List<Path> matches;
+        try(Stream<Path> files = Files.walk(base, depth)){
+            matches = files.filter(path -> matcher.matches(path) && Files.isRegularFile(path)).sorted().toList();
+        }
+        paths.addAll(matches);
+        return !matches.isEmpty();
+    }
+}
@@ -0,0 +1,254 @@
+package lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps one warm JVM serving scripts over a socket, so a client doesn't pay for starting a JVM and for the JIT
+ * warming up again on every script. Started with --server and either a port, served on the loopback interface only,
+ * or the path of a Unix domain socket. A socket left at the path by a server that is gone is replaced, any other file
+ * there makes the server refuse to start.
+ * A client sends any number of requests on a connection, each the length of the source in bytes followed by the source
+ * in UTF-8. Every request gets back an int status, 0 or the exit code runFile would have used (65 for syntax errors, 70
+ * for runtime errors), then what the run printed and then its errors, both as a length followed by UTF-8.
+ * Every connection is served on a thread of its own, each request with its own Diagnostics, and trees parsed from the
+ * same source are shared between requests
+ */
+final class LoxServer {
+
+    //sources bigger than this are refused, the length is the first thing read from an untrusted client
+    private static final int MAX_SOURCE = 1 << 26;
+    //parsed trees kept, the least recently run is dropped first
+    private static final int CACHED_TREES = 256;
+    //the file type bits of a unix:mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final ServerSocketChannel channel;
+    private final ExecutorService connections = newThreadPerTaskExecutor();
+    private final Map<String, Parsed> trees = new LinkedHashMap<>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Parsed> eldest){
+            return size() > CACHED_TREES;
+        }
+    };
+
+    private LoxServer(ServerSocketChannel channel){
+        this.channel = channel;
+    }
+
+    /**
+     * binds the server, a number is taken as a loopback port and anything else as a socket file to create
+     */
+    static LoxServer open(String address) throws IOException{
+        if(address.chars().allMatch(Character::isDigit)){
+            return open(ServerSocketChannel.open(),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        }
+
+        Path path = Paths.get(address);
+        UnixDomainSocketAddress socket = UnixDomainSocketAddress.of(path);
+        removeStaleSocket(path, socket);
+        LoxServer server = open(ServerSocketChannel.open(StandardProtocolFamily.UNIX), socket);
+        //only once bound, the file is this server's own socket
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try{
+                Files.deleteIfExists(path);
+            }catch (IOException ignored){
+                //nothing left to do while the JVM goes down
+            }
+        }));
+        return server;
+    }
+
+    /**
+     * a socket file left behind by a server that was killed would make bind fail, so it is removed. Anything else at
+     * the path is left alone
+     * @throws FileAlreadyExistsException when the path is not a socket, or a server is still listening on it
+     */
+    private static void removeStaleSocket(Path path, UnixDomainSocketAddress socket) throws IOException{
+        BasicFileAttributes attributes;
+        try{
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }catch (NoSuchFileException e){
+            return;
+        }
+        if(!isSocket(path, attributes)){
+            throw new FileAlreadyExistsException(path.toString(), null, "exists and is not a socket");
+        }
+
+        boolean listening;
+        try{
+            SocketChannel.open(socket).close();
+            listening = true;
+        }catch (IOException e){
+            //nobody answers, the server that made it is gone
+            listening = false;
+        }
+        if(listening){
+            throw new FileAlreadyExistsException(path.toString(), null, "another server is listening on it");
+        }
+        Files.delete(path);
+    }
+
+    private static boolean isSocket(Path path, BasicFileAttributes attributes) throws IOException{
+        if(!attributes.isOther()){
+            return false;
+        }
+        //pipes and devices are other files too, the mode's file type tells a socket apart where there is one
+        if(path.getFileSystem().supportedFileAttributeViews().contains("unix")){
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        }
+        return true;
+    }
+
+    private static LoxServer open(ServerSocketChannel channel, SocketAddress address) throws IOException{
+        channel.bind(address);
+        return new LoxServer(channel);
+    }
+
+    SocketAddress address() throws IOException{
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * accepts connections until the server is closed
+     */
+    void serve() throws IOException{
+        System.err.println("Serving on " + address());
+        while(channel.isOpen()){
+            SocketChannel client;
+            try{
+                client = channel.accept();
+            }catch (IOException e){
+                if(!channel.isOpen()){
+                    break;
+                }
+                throw e;
+            }
+            connections.execute(() -> serve(client));
+        }
+    }
+
+    void close() throws IOException{
+        channel.close();
+        connections.shutdown();
+    }
+
+    private void serve(SocketChannel client){
+        try(client){
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+
+            while(true){
+                int length;
+                try{
+                    length = in.readInt();
+                }catch (EOFException e){
+                    //the client is done
+                    return;
+                }
+                if(length < 0 || length > MAX_SOURCE){
+                    return;
+                }
+                byte[] source = new byte[length];
+                in.readFully(source);
+
+                respond(new String(source, StandardCharsets.UTF_8), out);
+                out.flush();
+            }
+        }catch (IOException e){
+            //the client went away mid request, nobody is left to tell
+        }
+    }
+
+    private void respond(String source, DataOutputStream response) throws IOException{
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(printed, false, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(errors, false, StandardCharsets.UTF_8);
+        Diagnostics diagnostics = new Diagnostics(err);
+
+        try{
+            run(source, out, diagnostics);
+        }catch (StackOverflowError e){
+            diagnostics.stackOverflow();
+        }
+        out.flush();
+        err.flush();
+
+        response.writeInt(diagnostics.exitCode());
+        write(printed, response);
+        write(errors, response);
+    }
+
+    private static void write(ByteArrayOutputStream bytes, DataOutputStream response) throws IOException{
+        response.writeInt(bytes.size());
+        bytes.writeTo(response);
+    }
+
+    /**
+     * Lox.run, with the parsed trees of sources run before taken from the cache. Only successfully parsed Expr trees
+     * are kept, the arena and the sealed records are run the way Lox.run does it
+     */
+    private void run(String source, PrintStream out, Diagnostics diagnostics){
+        if(Lox.useArena || Lox.useSealed){
+            Lox.run(source, out, diagnostics);
+            return;
+        }
+
+        Parsed parsed;
+        synchronized(trees){
+            parsed = trees.get(source);
+        }
+        if(parsed == null){
+            parsed = Lox.parseTree(Lox.parser(source, diagnostics));
+            if(diagnostics.hadError()){
+                return;
+            }
+            synchronized(trees){
+                trees.put(source, parsed);
+            }
+        }
+        Lox.evaluate(parsed.tree(), parsed.shared(), out, diagnostics);
+    }
+
+    /**
+     * a virtual thread per connection when the JVM has them, they are only looked up at runtime so the interpreter
+     * still builds and runs on Java 17, where a cached pool of platform threads is used instead
+     */
+    private static ExecutorService newThreadPerTaskExecutor(){
+        try{
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch (ReflectiveOperationException e){
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Source text read straight out of a memory-mapped file. ASCII files are scanned in place, one byte per char,
+ * so the file is never copied onto the heap; only the lexemes and literals asked for are turned into Strings
+ */
+final class MappedSource implements CharSequence {
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer bytes, int offset, int length){
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * maps the file, falls back to decoding it once into a CharBuffer when it is not plain ASCII
+     * @return the contents of the file as a CharSequence the Scanner can run over
+     */
+    static CharSequence map(Path path) throws IOException{
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE){
+                throw new IOException(path + " is too large to scan, sources are limited to 2GB");
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(isAscii(mapped, (int) size)){
+                return new MappedSource(mapped, 0, (int) size);
+            }
+
+            return Charset.defaultCharset().decode(mapped);
+        }
+    }
+
+    /**
+     * checks 8 bytes at a time for any byte with its high bit set
+     */
+    private static boolean isAscii(ByteBuffer bytes, int size){
+        int i = 0;
+        for(; i + Long.BYTES <= size; i += Long.BYTES){
+            if((bytes.getLong(i) & HIGH_BITS) != 0){
+                return false;
+            }
+        }
+        for(; i < size; i++){
+            if(bytes.get(i) < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length(){
+        return length;
+    }
+
+    @Override
+    public char charAt(int index){
+        return (char) bytes.get(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString(){
+        byte[] copy = new byte[length];
+        bytes.get(offset, copy);
+        return new String(copy, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,98 @@
+package lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a tree from HashConsBuilder computing every shared subtree once per run. Expressions have no side
+ * effects, so the first value of a shared node is its value everywhere it occurs. Values are only remembered once a
+ * node was evaluated, so a shared node in a branch that isn't taken still never runs
+ */
+class MemoizingEvaluator implements Expr.Visitor<Object> {
+
+    private final Set<Expr> shared;
+    private final Map<Expr, Object> values = new IdentityHashMap<>();
+
+    MemoizingEvaluator(Set<Expr> shared){
+        this.shared = shared;
+    }
+
+    Object run(Expr expr){
+        values.clear();
+        return evaluate(expr);
+    }
+
+    private Object evaluate(Expr expr){
+        if(!shared.contains(expr)){
+            return expr.accept(this);
+        }
+        //nil is a value too, so a miss is told apart with containsKey
+        Object value = values.get(expr);
+        if(value == null && !values.containsKey(expr)){
+            value = expr.accept(this);
+            values.put(expr, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr){
+        Object left = evaluate(expr.left);
+        if(Interpreter.isLogical(expr.operator.type)){
+            return Interpreter.shortCircuits(expr.operator.type, left) ? left : evaluate(expr.right);
+        }
+        Object right = evaluate(expr.right);
+
+        Object value = Interpreter.binary(expr.operator.type, left, right);
+        if(value == Interpreter.INVALID_OPERANDS){
+            throw Interpreter.binaryError(expr.operator);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitTernaryExpr(Expr.Ternary expr){
+        return Interpreter.isTruthy(evaluate(expr.condition)) ? evaluate(expr.left) : evaluate(expr.right);
+    }
+
+    @Override
+    public Object visitGroupingExpr(Expr.Grouping expr){
+        return evaluate(expr.expression);
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr){
+        Object value = Interpreter.unary(expr.operator.type, evaluate(expr.right));
+        if(value == Interpreter.INVALID_OPERANDS){
+            throw Interpreter.unaryError(expr.operator);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expr.Literal expr){
+        return expr.value;
+    }
+
+    @Override
+    public Object BinaryRPN(Expr.Binary expr){
+        return visitBinaryExpr(expr);
+    }
+    @Override
+    public Object TernaryRPN(Expr.Ternary expr){
+        return visitTernaryExpr(expr);
+    }
+    @Override
+    public Object GroupingRPN(Expr.Grouping expr){
+        return visitGroupingExpr(expr);
+    }
+    @Override
+    public Object UnaryRPN(Expr.Unary expr){
+        return visitUnaryExpr(expr);
+    }
+    @Override
+    public Object LiteralRPN(Expr.Literal expr){
+        return visitLiteralExpr(expr);
+    }
+}
@@ -0,0 +1,136 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lexes a large source on the fork-join pool. The source is cut into chunks at newlines and every chunk is scanned
+ * in parallel as if it started at the beginning of a token. That guess is wrong when a string or a block comment
+ * runs across the cut, so the chunks are stitched in order and a chunk whose predecessor stopped somewhere else
+ * than at its first character is scanned again from where the predecessor really stopped.
+ * Tokens, lines and errors come out exactly as the serial Scanner would produce them
+ */
+class ParallelScanner {
+
+    private static final int MIN_CHUNK = 1 << 16;
+
+    private final CharSequence source;
+    private final int minChunk;
+    private final Diagnostics diagnostics;
+
+    ParallelScanner(CharSequence source){
+        this(source, new Diagnostics(System.err));
+    }
+
+    ParallelScanner(CharSequence source, Diagnostics diagnostics){
+        this(source, MIN_CHUNK, diagnostics);
+    }
+
+    /**
+     * @param minChunk the smallest number of characters worth handing to a worker
+     */
+    ParallelScanner(CharSequence source, int minChunk, Diagnostics diagnostics){
+        this.source = source;
+        this.minChunk = minChunk;
+        this.diagnostics = diagnostics;
+    }
+
+    TokenBuffer scanTokens(){
+        List<Chunk> chunks = split();
+        ForkJoinTask.invokeAll(chunks);
+
+        TokenBuffer tokens = new TokenBuffer(source);
+        //lines before the chunk being stitched, and the offset where the last accepted scan stopped
+        int linesBefore = 0;
+        int resume = 0;
+
+        for(Chunk chunk : chunks){
+            if(resume <= chunk.from){
+                tokens.append(chunk.tokens, linesBefore);
+                report(chunk.errors, linesBefore);
+                resume = chunk.end;
+            }else if(resume < chunk.to){
+                //the previous chunk's last token ran into this one, rescan from where it actually ended
+                Scanner scanner = new Scanner(source, resume, chunk.to, 1 + linesBefore + newlines(chunk.from, resume));
+                tokens.append(scanner.scanChunk(), 0);
+                report(scanner.errors(), 0);
+                resume = scanner.position();
+            }
+            //otherwise the whole chunk sits inside a string or comment that started earlier
+
+            linesBefore += chunk.newlines;
+        }
+
+        tokens.add(TokenType.EOF, resume, 0, 1 + linesBefore);
+        return tokens;
+    }
+
+    /**
+     * cuts the source right after newlines, into roughly one chunk per worker thread and then some
+     */
+    private List<Chunk> split(){
+        int workers = ForkJoinTask.getPool() != null ? ForkJoinTask.getPool().getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int size = Math.max(minChunk, source.length() / (workers * 4));
+
+        List<Chunk> chunks = new ArrayList<>();
+        int from = 0;
+        while(from < source.length()){
+            int to = Math.min(from + size, source.length());
+            while(to < source.length() && source.charAt(to - 1) != '\n'){
+                to++;
+            }
+            chunks.add(new Chunk(from, to));
+            from = to;
+        }
+        return chunks;
+    }
+
+    private int newlines(int from, int to){
+        int count = 0;
+        for(int i = from; i < to; i++){
+            if(source.charAt(i) == '\n'){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void report(List<Scanner.ScanError> errors, int lineOffset){
+        for(Scanner.ScanError error : errors){
+            diagnostics.error(error.line + lineOffset, error.message);
+        }
+    }
+
+    /**
+     * a slice of the source scanned on its own, with lines counted from 1
+     */
+    //a fork-join task that is never serialized
+    @SuppressWarnings("serial")
+    private class Chunk extends RecursiveAction {
+        final int from;
+        final int to;
+
+        int newlines;
+        int end;
+        TokenBuffer tokens;
+        List<Scanner.ScanError> errors;
+
+        Chunk(int from, int to){
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            newlines = newlines(from, to);
+
+            Scanner scanner = new Scanner(source, from, to, 1);
+            tokens = scanner.scanChunk();
+            errors = scanner.errors();
+            end = scanner.position();
+        }
+    }
+}
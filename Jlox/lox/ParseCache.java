@@ -0,0 +1,405 @@
+package lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parsed trees kept on disk, one file per source named after the SHA-256 of its bytes, so a script that hasn't
+ * changed is loaded instead of scanned and parsed again. A tree is stored as the DAG HashConsBuilder made of it:
+ * every distinct node once, children before their parents and referred to by how far back they are, operators as
+ * their type, line and lexeme. The nodes a tree shares are worked out again while loading it. The cache only ever
+ * speeds things up: a file that can't be read is a miss and one that can't be written is skipped
+ */
+final class ParseCache {
+
+    private static final int MAGIC = 0x4C4F5841;
+    //bump whenever the format or the trees the Parser builds change, older files then read as misses
+    private static final int VERSION = 2;
+
+    private static final int BINARY = 0;
+    private static final int TERNARY = 1;
+    private static final int GROUPING = 2;
+    private static final int UNARY = 3;
+    private static final int LITERAL = 4;
+
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path directory;
+
+    ParseCache(Path directory){
+        this.directory = directory;
+    }
+
+    /**
+     * the name of source's entry, the charset is part of it since it decides what the bytes parse to
+     */
+    static String key(byte[] source, Charset charset){
+        try{
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(charset.name().getBytes(StandardCharsets.US_ASCII));
+            digest.update((byte) 0);
+            digest.update(source);
+
+            StringBuilder key = new StringBuilder();
+            for(byte b : digest.digest()){
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        }catch (NoSuchAlgorithmException e){
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the tree stored under key with its repeated nodes, null if there is none or it can't be read
+     */
+    Parsed load(String key){
+        try{
+            //read whole, so every length in the file can be checked against what is left of it
+            return read(new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file(key)))));
+        }catch (NoSuchFileException e){
+            return null;
+        }catch (IOException | RuntimeException e){
+            //a truncated or foreign file, it is written again after this parse
+            return null;
+        }
+    }
+
+    /**
+     * stores tree under key. The file is written next to its final name and moved there, so a run reading the
+     * cache at the same time never sees half of it
+     */
+    void store(String key, Parsed parsed){
+        Path temporary = null;
+        try{
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try(DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))){
+                write(out, parsed.tree());
+            }
+            Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException | IllegalArgumentException e){
+            //not being able to cache is no reason to fail the run
+            if(temporary != null){
+                try{
+                    Files.deleteIfExists(temporary);
+                }catch (IOException ignored){
+                }
+            }
+        }
+    }
+
+    private Path file(String key){
+        return directory.resolve(key + ".ast");
+    }
+
+    private static void write(DataOutputStream out, Expr root) throws IOException{
+        List<Expr> order = postOrder(root);
+        Map<Expr, Integer> index = new IdentityHashMap<>();
+        Tokens tokens = new Tokens();
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeInt(out, order.size());
+        for(int i = 0; i < order.size(); i++){
+            Expr node = order.get(i);
+            index.put(node, i);
+
+            if(node instanceof Expr.Binary binary){
+                out.writeByte(BINARY);
+                writeChild(out, index, i, binary.left);
+                writeToken(out, tokens, binary.operator);
+                writeChild(out, index, i, binary.right);
+            }else if(node instanceof Expr.Ternary ternary){
+                out.writeByte(TERNARY);
+                writeChild(out, index, i, ternary.condition);
+                writeToken(out, tokens, ternary.first);
+                writeChild(out, index, i, ternary.left);
+                writeToken(out, tokens, ternary.second);
+                writeChild(out, index, i, ternary.right);
+            }else if(node instanceof Expr.Grouping grouping){
+                out.writeByte(GROUPING);
+                writeChild(out, index, i, grouping.expression);
+            }else if(node instanceof Expr.Unary unary){
+                out.writeByte(UNARY);
+                writeToken(out, tokens, unary.operator);
+                writeChild(out, index, i, unary.right);
+            }else {
+                out.writeByte(LITERAL);
+                writeLiteral(out, ((Expr.Literal) node).value);
+            }
+        }
+    }
+
+    /**
+     * every distinct node of the tree, children first, walked with a stack so deep trees don't need the Java stack
+     */
+    private static List<Expr> postOrder(Expr root){
+        List<Expr> order = new ArrayList<>();
+        Set<Expr> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Expr> work = new ArrayDeque<>();
+        work.push(root);
+
+        while(!work.isEmpty()){
+            Expr node = work.peek();
+            if(done.contains(node)){
+                work.pop();
+                continue;
+            }
+
+            boolean ready = true;
+            for(Expr child : children(node)){
+                if(!done.contains(child)){
+                    work.push(child);
+                    ready = false;
+                }
+            }
+            if(ready){
+                work.pop();
+                done.add(node);
+                order.add(node);
+            }
+        }
+        return order;
+    }
+
+    private static List<Expr> children(Expr node){
+        if(node instanceof Expr.Binary binary){
+            return List.of(binary.right, binary.left);
+        }else if(node instanceof Expr.Ternary ternary){
+            return List.of(ternary.right, ternary.left, ternary.condition);
+        }else if(node instanceof Expr.Grouping grouping){
+            return List.of(grouping.expression);
+        }else if(node instanceof Expr.Unary unary){
+            return List.of(unary.right);
+        }
+        return List.of();
+    }
+
+    private static void writeChild(DataOutputStream out, Map<Expr, Integer> index, int parent, Expr child)
+            throws IOException{
+        writeInt(out, parent - index.get(child));
+    }
+
+    /**
+     * what the tokens of a file are written relative to: the lexemes so far, each only spelled out the first time,
+     * and the last token's line, the next line is stored as the difference to it
+     */
+    private static final class Tokens {
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<String> lexemes = new ArrayList<>();
+        int line;
+    }
+
+    private static void writeToken(DataOutputStream out, Tokens tokens, Token token) throws IOException{
+        out.writeByte(token.type.ordinal());
+        //zigzag, so a line before the last one is a small number too
+        int difference = token.line - tokens.line;
+        writeInt(out, (difference << 1) ^ (difference >> 31));
+        tokens.line = token.line;
+
+        Integer lexeme = tokens.indexes.get(token.lexeme());
+        if(lexeme != null){
+            writeInt(out, lexeme);
+            return;
+        }
+        writeInt(out, tokens.indexes.size());
+        writeString(out, token.lexeme());
+        tokens.indexes.put(token.lexeme(), tokens.indexes.size());
+    }
+
+    private static void writeLiteral(DataOutputStream out, Object value) throws IOException{
+        if(value == null){
+            out.writeByte(NIL);
+        }else if(value instanceof Boolean bool){
+            out.writeByte(bool ? TRUE : FALSE);
+        }else if(value instanceof Double number){
+            out.writeByte(NUMBER);
+            out.writeDouble(number);
+        }else if(value instanceof String text){
+            out.writeByte(STRING);
+            writeString(out, text);
+        }else {
+            throw new IllegalArgumentException("can't store literal " + value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException{
+        //writeUTF stops at 64KB, string literals don't
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * an unsigned int in 7 bit groups, low group first, so small numbers take one byte
+     */
+    private static void writeInt(OutputStream out, int value) throws IOException{
+        while((value & ~0x7f) != 0){
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static Parsed read(DataInputStream in) throws IOException{
+        if(in.readInt() != MAGIC || in.readUnsignedByte() != VERSION){
+            return null;
+        }
+
+        //a node takes at least two bytes
+        int count = readInt(in);
+        if(count <= 0 || count > in.available() / 2){
+            throw new IOException("bad node count");
+        }
+        Expr[] nodes = new Expr[count];
+        //up to three children per node, -1 where there is none, and how many parents point at each node
+        int[] children = new int[count * 3];
+        int[] parents = new int[count];
+        Tokens tokens = new Tokens();
+
+        for(int i = 0; i < count; i++){
+            children[i * 3] = children[i * 3 + 1] = children[i * 3 + 2] = -1;
+            switch (in.readUnsignedByte()){
+                case BINARY -> {
+                    int left = readChild(in, i, 0, children, parents);
+                    Token operator = readToken(in, tokens);
+                    int right = readChild(in, i, 1, children, parents);
+                    nodes[i] = new Expr.Binary(nodes[left], operator, nodes[right]);
+                }
+                case TERNARY -> {
+                    int condition = readChild(in, i, 0, children, parents);
+                    Token first = readToken(in, tokens);
+                    int left = readChild(in, i, 1, children, parents);
+                    Token second = readToken(in, tokens);
+                    int right = readChild(in, i, 2, children, parents);
+                    nodes[i] = new Expr.Ternary(nodes[condition], first, nodes[left], second, nodes[right]);
+                }
+                case GROUPING -> nodes[i] = new Expr.Grouping(nodes[readChild(in, i, 0, children, parents)]);
+                case UNARY -> {
+                    Token operator = readToken(in, tokens);
+                    nodes[i] = new Expr.Unary(operator, nodes[readChild(in, i, 0, children, parents)]);
+                }
+                case LITERAL -> nodes[i] = new Expr.Literal(readLiteral(in));
+                default -> throw new IOException("unknown node kind");
+            }
+        }
+        if(in.read() != -1){
+            throw new IOException("trailing bytes");
+        }
+
+        //parents come after their children, so walking back down marks every node under a repeated one
+        Set<Expr> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean[] repeated = new boolean[count];
+        for(int i = count - 1; i >= 0; i--){
+            if(parents[i] > 1){
+                repeated[i] = true;
+            }
+            if(repeated[i] && !(nodes[i] instanceof Expr.Literal)){
+                shared.add(nodes[i]);
+                for(int c = 0; c < 3; c++){
+                    if(children[i * 3 + c] >= 0){
+                        repeated[children[i * 3 + c]] = true;
+                    }
+                }
+            }
+        }
+        return new Parsed(nodes[count - 1], shared);
+    }
+
+    private static int readChild(DataInputStream in, int parent, int slot, int[] children, int[] parents)
+            throws IOException{
+        int distance = readInt(in);
+        if(distance <= 0 || distance > parent){
+            throw new IOException("bad child reference");
+        }
+        int child = parent - distance;
+        children[parent * 3 + slot] = child;
+        parents[child]++;
+        return child;
+    }
+
+    private static Token readToken(DataInputStream in, Tokens tokens) throws IOException{
+        int type = in.readUnsignedByte();
+        if(type >= TYPES.length){
+            throw new IOException("unknown token type");
+        }
+        int difference = readInt(in);
+        tokens.line += (difference >>> 1) ^ -(difference & 1);
+
+        int lexeme = readInt(in);
+        if(lexeme == tokens.lexemes.size()){
+            tokens.lexemes.add(readString(in));
+        }else if(lexeme > tokens.lexemes.size() || lexeme < 0){
+            throw new IOException("bad lexeme reference");
+        }
+        return new Token(TYPES[type], tokens.lexemes.get(lexeme), null, tokens.line);
+    }
+
+    private static Object readLiteral(DataInputStream in) throws IOException{
+        switch (in.readUnsignedByte()){
+            case NIL -> {return null;}
+            case FALSE -> {return false;}
+            case TRUE -> {return true;}
+            case NUMBER -> {return in.readDouble();}
+            case STRING -> {return readString(in);}
+            default -> throw new IOException("unknown literal");
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException{
+        int length = readInt(in);
+        if(length < 0 || length > in.available()){
+            throw new IOException("bad string length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readInt(InputStream in) throws IOException{
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.read();
+            if(b < 0){
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("malformed int");
+    }
+}
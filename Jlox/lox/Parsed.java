@@ -0,0 +1,10 @@
+package lox;
+
+import java.util.Set;
+
+/**
+ * A parsed Expr tree with the operator nodes that occur more than once in it, like HashConsBuilder.shared(), empty
+ * when the tree wasn't hash-consed. What the parse cache loads and stores, and what the server and the pipeline keep
+ * between parsing and evaluating
+ */
+record Parsed(Expr tree, Set<Expr> shared) {}
@@ -1,28 +1,48 @@
 package lox;
 
-import java.util.List;
+import java.util.Arrays;
+
 import static lox.TokenType.*;
 
 class Parser {
 
-    private final List<Token> tokens;
-    private int current;
+    static final int NO_NODE = -1;
+
+    private final TokenStream tokens;
+    private Expr.Builder builder;
+    private final Diagnostics diagnostics;
+
+    public Parser(TokenStream tokens){
+        this(tokens, new Diagnostics(System.err));
+    }
 
-    public Parser(List<Token> tokens){
+    Parser(TokenStream tokens, Diagnostics diagnostics){
         this.tokens = tokens;
-        current = 0;
+        this.diagnostics = diagnostics;
     }
 
     public Expr parse(){
+        Expr.TreeBuilder tree = new Expr.TreeBuilder();
+        int root = parse(tree);
+        return root == NO_NODE ? null : tree.get(root);
+    }
+
+    /**
+     * parses into any node builder, nodes are handed to it bottom up
+     * @param builder where the nodes go, e.g. a HashConsBuilder, a TreeBuilder or an ExprArena
+     * @return the builder's handle of the root node, NO_NODE if there was a syntax error
+     */
+    int parse(Expr.Builder builder){
+        this.builder = builder;
         try {
             return expression();
         }catch (ParseError error){
-            return null;
+            return NO_NODE;
         }
     }
 
     private ParseError error(Token token, String err_message){
-        Lox.error(token, err_message);
+        diagnostics.error(token, err_message);
         return new ParseError();
     }
 
@@ -40,16 +60,14 @@ class Parser {
      * @return return current token
      */
     private Token peak(){
-        return tokens.get(current);
+        return tokens.peek();
     }
 
     /**
      * @return return the current token, and consumes it.
      */
     private Token advance(){
-        Token temp = tokens.get(current);
-        current++;
-        return temp;
+        return tokens.advance();
     }
 
     /**
@@ -65,159 +83,192 @@ class Parser {
         throw error(peak(), err_message);
     }
 
-    /**
-     * checks if we are at the end of the tokens list
-     * @return return true if we're at the end
-     */
-    private boolean isEnd(){
-        return peak().type == TokenType.EOF;
-    }
-
-    /**
-     * checks if the cur token is of a given type
-     * @param type the type to check against
-     * @return true if it matches
-     */
-    private boolean check(TokenType type){
-        if(!isEnd()){
-            return peak().type == type;
-        }
-        return false;
-    }
-
-    /**
-     * looks at current token and return true if it matches any of the operators
-     * @param operators a list of operators to test on
-     * @return true if there's a hit
-     */
-    private boolean match(TokenType... operators){
-        TokenType cur_type = tokens.get(current).type;
-
-        for (TokenType operator : operators) {
-            if (check(operator)){
-                return true;
-            }
-        }
-        return false;
+    //binding powers of the infix operators, the higher the tighter they bind
+    private static final int NONE = 0;
+    private static final int LISTING = 1;
+    private static final int TERNARY = 2;
+    private static final int LOGIC_OR = 3;
+    private static final int LOGIC_AND = 4;
+    private static final int EQUALITY = 5;
+    private static final int COMPARISON = 6;
+    private static final int TERM = 7;
+    private static final int FACTOR = 8;
+    private static final int UNARY = 9;
+
+    private static final int[] INFIX = new int[TokenType.values().length];
+
+    static {
+        INFIX[COMMA.ordinal()] = LISTING;
+        INFIX[QUESTION_MARK.ordinal()] = TERNARY;
+        INFIX[OR.ordinal()] = LOGIC_OR;
+        INFIX[AND.ordinal()] = LOGIC_AND;
+        INFIX[BANG_EQUAL.ordinal()] = EQUALITY;
+        INFIX[EQUAL_EQUAL.ordinal()] = EQUALITY;
+        INFIX[LESS.ordinal()] = COMPARISON;
+        INFIX[GREATER.ordinal()] = COMPARISON;
+        INFIX[LESS_EQUAL.ordinal()] = COMPARISON;
+        INFIX[GREATER_EQUAL.ordinal()] = COMPARISON;
+        INFIX[PLUS.ordinal()] = TERM;
+        INFIX[MINUS.ordinal()] = TERM;
+        INFIX[SLASH.ordinal()] = FACTOR;
+        INFIX[STAR.ordinal()] = FACTOR;
     }
 
-
-    private Expr expression(){
-        return listing();
-    }
+    //what a frame does next, the states after a pending call resume with that call's result
+    private static final int PREFIX = 0;
+    private static final int INFIX_LOOP = 1;
+    private static final int AFTER_UNARY = 2;
+    private static final int AFTER_GROUPING = 3;
+    private static final int AFTER_MISSING_LEFT = 4;
+    private static final int AFTER_LISTING = 5;
+    private static final int AFTER_FIRST = 6;
+    private static final int AFTER_SECOND = 7;
+    private static final int AFTER_BINARY = 8;
 
     /**
-     * Supports the comma operator as in a list of expressions : a,b,c
-     * @return the total expression left associative so (, (, a b) c)
+     * one pending expression(power) call of the Pratt parser, kept on an explicit stack so nesting depth is only
+     * bounded by the heap
      */
-    private Expr listing(){
-        Expr expr = ternary();
-        while (match(COMMA)){
-            Token operator = advance();
-            Expr right = equation();
-
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private static final class Frame {
+        int power;
+        int state;
+        int expr;
+        //a ternary only takes a logic_or as its condition, so none may follow a ternary or a comma
+        boolean ternary;
+        Token operator;
+        int left;
+        Token second;
     }
 
-    private Expr ternary(){
-        Expr expr = equation();
+    private Frame[] frames = new Frame[16];
+    private int depth;
 
-        if(match(QUESTION_MARK)){
-            Token first = advance();
-            Expr left = expression();
-            Token second = consume(COLON, "a ternary operation has the format a?b:c\t the " +
-                    "inputted string is missing a :");
-            Expr right = expression();
-
-            expr = new Expr.Ternary(expr, first, left, second, right );
-        }
-        return expr;
-    }
-
-    private Expr equation(){
-        //left recursion
-        Expr expr = comparison();
-
-        while(match(BANG_EQUAL, EQUAL_EQUAL)){
-            Token operator = advance();
-            Expr right = comparison();
-
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr comparison(){
-        Expr expr = term();
-
-        while(match(LESS, GREATER, LESS_EQUAL, GREATER_EQUAL)){
-            Token operator = advance();
-            Expr right = term();
-
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr term(){
-        Expr expr = factor();
-
-        while(match(PLUS, MINUS)){
-            Token operator = advance();
-            Expr right = factor();
-
-            expr = new Expr.Binary(expr, operator, right);
+    private void call(int power){
+        if(depth == frames.length){
+            frames = Arrays.copyOf(frames, depth * 2);
         }
-        return expr;
-    }
-
-    private Expr factor(){
-        Expr expr = unary();
-
-        while(match(SLASH, STAR)){
-            Token operator = advance();
-            Expr right = unary();
-
-            expr = new Expr.Binary(expr, operator, right);
+        Frame frame = frames[depth];
+        if(frame == null){
+            frame = frames[depth] = new Frame();
         }
-        return expr;
+        frame.power = power;
+        frame.state = PREFIX;
+        frame.ternary = true;
+        depth++;
     }
 
-    private Expr unary(){
-        if(match(BANG, MINUS)){
-            Token operator = advance();
-            Expr right = unary();
-
-            return new Expr.Unary(operator, right);
-        }
-        return primary();
-   }
-
-   private Expr primary(){
-        Token cur = peak();
-
-        switch (cur.type){
-            case FALSE -> {advance(); return new Expr.Literal(false);}
-            case TRUE -> {advance(); return new Expr.Literal(true);}
-            case NIL -> {advance(); return new Expr.Literal(null);}
-            case NUMBER, STRING -> {advance(); return new Expr.Literal(cur.literal);}
-            case LEFT_PAREN -> {
-                advance();
-                Expr expr = expression();
-                Token right = consume(RIGHT_PAREN, "Missing closing parentheses");
-                return new Expr.Grouping(expr);
-            }
-            case EQUAL_EQUAL, BANG_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
-                advance();
-                Expr discard = equation();
-                throw error(cur, "Binary operator does not have a left-hand operand");
+    /**
+     * Pratt parser, reads a prefix operand then keeps folding infix operators into it while they bind at least as
+     * tightly as power. Binary operators are left associative, the comma's right operand is a single logic_or and
+     * a ternary's branches are whole expressions: so (, a b) for a,b and (a) ? (b, c) : (d, e) for a?b,c:d,e.
+     * Every nested operand is a call on the frame stack instead of a Java call, the caller's state says what to do
+     * with the operand once it is parsed
+     * @return the parsed expression
+     */
+    private int expression(){
+        depth = 0;
+        call(LISTING);
+        //the handle returned by the last call that finished
+        int result = NO_NODE;
+
+        while(true){
+            Frame frame = frames[depth - 1];
+            switch (frame.state){
+                case PREFIX -> {
+                    Token cur = peak();
+                    switch (cur.type){
+                        case BANG, MINUS -> {
+                            advance();
+                            frame.operator = cur;
+                            frame.state = AFTER_UNARY;
+                            call(UNARY);
+                        }
+                        case FALSE -> {advance(); frame.expr = builder.literal(false); frame.state = INFIX_LOOP;}
+                        case TRUE -> {advance(); frame.expr = builder.literal(true); frame.state = INFIX_LOOP;}
+                        case NIL -> {advance(); frame.expr = builder.literal(null); frame.state = INFIX_LOOP;}
+                        case NUMBER, STRING -> {
+                            advance();
+                            frame.expr = builder.literal(cur.literal);
+                            frame.state = INFIX_LOOP;
+                        }
+                        case LEFT_PAREN -> {
+                            advance();
+                            frame.state = AFTER_GROUPING;
+                            call(LISTING);
+                        }
+                        case EQUAL_EQUAL, BANG_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, AND, OR -> {
+                            //the operand is still parsed, so errors inside it are reported first
+                            advance();
+                            frame.operator = cur;
+                            frame.state = AFTER_MISSING_LEFT;
+                            call(EQUALITY);
+                        }
+                        default -> throw error(cur, "Invalid Symbol");
+                    }
+                }
+                case AFTER_UNARY -> {
+                    frame.expr = builder.unary(frame.operator, result);
+                    frame.state = INFIX_LOOP;
+                }
+                case AFTER_GROUPING -> {
+                    consume(RIGHT_PAREN, "Missing closing parentheses");
+                    frame.expr = builder.grouping(result);
+                    frame.state = INFIX_LOOP;
+                }
+                case AFTER_MISSING_LEFT -> throw error(frame.operator, "Binary operator does not have a left-hand operand");
+                case INFIX_LOOP -> {
+                    TokenType type = peak().type;
+                    int infix = INFIX[type.ordinal()];
+
+                    if(infix == NONE || infix < frame.power || (type == QUESTION_MARK && !frame.ternary)){
+                        result = frame.expr;
+                        if(--depth == 0){
+                            return result;
+                        }
+                        continue;
+                    }
+
+                    frame.operator = advance();
+                    switch (infix){
+                        case LISTING -> {
+                            frame.state = AFTER_LISTING;
+                            call(LOGIC_OR);
+                        }
+                        case TERNARY -> {
+                            frame.state = AFTER_FIRST;
+                            call(LISTING);
+                        }
+                        default -> {
+                            frame.state = AFTER_BINARY;
+                            call(infix + 1);
+                        }
+                    }
+                }
+                case AFTER_LISTING -> {
+                    frame.expr = builder.binary(frame.expr, frame.operator, result);
+                    frame.ternary = false;
+                    frame.state = INFIX_LOOP;
+                }
+                case AFTER_FIRST -> {
+                    frame.left = result;
+                    frame.second = consume(COLON, "a ternary operation has the format a?b:c\t the " +
+                            "inputted string is missing a :");
+                    frame.state = AFTER_SECOND;
+                    call(LISTING);
+                }
+                case AFTER_SECOND -> {
+                    frame.expr = builder.ternary(frame.expr, frame.operator, frame.left, frame.second, result);
+                    frame.ternary = false;
+                    frame.state = INFIX_LOOP;
+                }
+                default -> {
+                    frame.expr = builder.binary(frame.expr, frame.operator, result);
+                    frame.state = INFIX_LOOP;
+                }
             }
         }
-        throw error(cur, "Invalid Symbol");
-   }
+    }
 
-   private static class ParseError extends RuntimeException{}
+    private static class ParseError extends RuntimeException{}
 }
 
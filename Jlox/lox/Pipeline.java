@@ -0,0 +1,283 @@
+package lox;
+
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a source of many statements separated by ';' with scanning, parsing and evaluating overlapped, started with
+ * --pipeline. The Scanner runs on a thread of its own handing batches of tokens to the parser thread, which parses
+ * them a statement at a time and hands the trees on to the calling thread that evaluates them. Every statement is
+ * printed as soon as it is evaluated instead of after the whole source is scanned and parsed.
+ * Both queues are bounded, a stage that gets too far ahead waits for the next one. A statement with a syntax error is
+ * reported and skipped, the ones after it still run. Errors travel down the pipeline with their statement and are
+ * reported by the evaluating thread, after the output of the statements before them
+ */
+final class Pipeline {
+
+    //tokens handed from the scanner to the parser at a time, the last batch ends with the EOF token
+    private static final int TOKEN_BATCH = 4096;
+    //most statements handed to the evaluator at a time, fewer when the parser has to wait for tokens
+    private static final int STATEMENT_BATCH = 64;
+    //batches waiting in each queue before the stage filling it blocks
+    private static final int QUEUED = 8;
+    //output held by the evaluator, it is written out whenever the evaluator has to wait
+    private static final int OUTPUT_BUFFER = 1 << 16;
+
+    private final CharSequence source;
+    private final PrintStream out;
+    private final Diagnostics diagnostics;
+
+    private final BlockingQueue<Tokens> tokens = new ArrayBlockingQueue<>(QUEUED);
+    private final BlockingQueue<Statements> statements = new ArrayBlockingQueue<>(QUEUED);
+    //what stopped the scanner or the parser, rethrown by run()
+    private volatile Throwable failure;
+
+    //the parser thread's place in the token batches, the next token and the next scan error
+    private Tokens batch = new Tokens(List.of(), List.of());
+    private int next;
+    private int nextError;
+    //what has been parsed but not handed over yet
+    private List<Statement> parsed = new ArrayList<>();
+    //the statement being parsed: its first token if it was peeked, the ';' or EOF it ends at once read, and its errors
+    private Token first;
+    private Token end;
+    private Diagnostics errors = Diagnostics.held();
+    //while reading past where the parser stopped, a statement run on its own is never scanned that far
+    private boolean skipping;
+
+    /**
+     * a batch of tokens from the scanner, the last one ends with the EOF token. The scan errors found among them are
+     * reported by the parser, with the statement they are in
+     */
+    private record Tokens(List<Token> tokens, List<ScanErrorAt> errors) {}
+
+    /**
+     * a scan error found in front of the token at this index of its batch
+     */
+    private record ScanErrorAt(int token, Scanner.ScanError error) {}
+
+    /**
+     * a batch of statements from the parser, last after the final statement or when the parser failed
+     */
+    private record Statements(List<Statement> statements, boolean last) {}
+
+    /**
+     * one statement: its tree, or the errors that keep it from running with a null tree
+     */
+    private record Statement(Parsed parsed, Diagnostics errors) {}
+
+    Pipeline(CharSequence source, PrintStream out, Diagnostics diagnostics){
+        this.source = source;
+        //System.out flushes every line, one write per statement costs more than evaluating it
+        this.out = new PrintStream(new BufferedOutputStream(out, OUTPUT_BUFFER), false);
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * evaluates the statements in the calling thread as they are parsed, returns once the last one is printed
+     */
+    void run(){
+        Thread scanner = new Thread(this::scan, "lox-scanner");
+        Thread parser = new Thread(this::parse, "lox-parser");
+        scanner.setDaemon(true);
+        parser.setDaemon(true);
+        scanner.start();
+        parser.start();
+
+        AstPrinter printer = new AstPrinter();
+        Diagnostics evaluating = Diagnostics.held();
+        try{
+            while(true){
+                Statements batch = statements.poll();
+                if(batch == null){
+                    //the parser is behind, show what is evaluated so far while waiting
+                    out.flush();
+                    batch = statements.take();
+                }
+                for(Statement statement : batch.statements()){
+                    Diagnostics reported = statement.errors();
+                    if(reported == null){
+                        reported = evaluating;
+                        Lox.evaluate(statement.parsed().tree(), statement.parsed().shared(), printer, out, reported);
+                    }
+                    if(reported.holdsErrors()){
+                        //the errors go to a stream of their own, what is printed before them has to be out first
+                        out.flush();
+                        reported.passOn(diagnostics);
+                    }
+                }
+                if(batch.last()){
+                    break;
+                }
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally {
+            out.flush();
+            //a stage left waiting on a full queue when evaluating failed would never finish
+            scanner.interrupt();
+            parser.interrupt();
+        }
+
+        if(failure instanceof Error error){
+            throw error;
+        }else if(failure != null){
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * the scanner stage
+     */
+    private void scan(){
+        Scanner scanner = new Scanner(source, diagnostics);
+        scanner.deferErrors();
+        Tokens batch = new Tokens(new ArrayList<>(TOKEN_BATCH), new ArrayList<>());
+        try{
+            Token token;
+            do{
+                token = next(scanner, batch);
+                batch.tokens().add(token);
+                if(batch.tokens().size() >= TOKEN_BATCH || token.type == TokenType.EOF){
+                    tokens.put(batch);
+                    batch = new Tokens(new ArrayList<>(TOKEN_BATCH), new ArrayList<>());
+                }
+            }while(token.type != TokenType.EOF);
+        }catch (InterruptedException e){
+            //evaluating stopped, nobody wants the rest
+        }
+    }
+
+    private Token next(Scanner scanner, Tokens batch){
+        Token token;
+        try{
+            token = scanner.nextToken();
+        }catch (RuntimeException | Error e){
+            //the parser still gets an EOF, so it finishes and the failure reaches run()
+            failure = e;
+            return new Token(TokenType.EOF, "", null, 0);
+        }
+
+        for(Scanner.ScanError error : scanner.errors()){
+            batch.errors().add(new ScanErrorAt(batch.tokens().size(), error));
+        }
+        scanner.errors().clear();
+        return token;
+    }
+
+    /**
+     * the parser stage
+     */
+    private void parse(){
+        try{
+            do{
+                end = null;
+                first = nextToken();
+                if(end != null && !errors.holdsErrors()){
+                    //nothing between two ';', or after the last one. Characters that failed to scan are still a
+                    //statement, parsed and reported like one run on its own instead of blaming the next one
+                    continue;
+                }
+
+                Parsed tree = Lox.parseTree(new Parser(new TokenStream(this::statementToken), errors));
+                //what the parser didn't read of the statement, after a syntax error or a complete expression
+                skipping = true;
+                while(end == null){
+                    nextToken();
+                }
+                skipping = false;
+
+                //a statement with characters that failed to scan isn't run, the same as a whole source
+                if(errors.holdsErrors()){
+                    parsed.add(new Statement(null, errors));
+                    errors = Diagnostics.held();
+                }else {
+                    parsed.add(new Statement(tree, null));
+                }
+                if(parsed.size() == STATEMENT_BATCH){
+                    flush();
+                }
+            }while(end.type != TokenType.EOF);
+
+            statements.put(new Statements(parsed, true));
+        }catch (InterruptedException e){
+            //evaluating stopped, nobody wants the rest
+        }catch (RuntimeException | Error e){
+            failure = e;
+            try{
+                statements.put(new Statements(List.of(), true));
+            }catch (InterruptedException ignored){
+                //evaluating stopped already
+            }
+        }
+    }
+
+    /**
+     * the parser's token source, which ends at the statement's ';'. The ';' binds as no operator so the parser stops
+     * at it, and it is repeated like an EOF for as long as the parser asks
+     */
+    private Token statementToken(){
+        if(first != null){
+            Token token = first;
+            first = null;
+            return token;
+        }
+        try{
+            return nextToken();
+        }catch (InterruptedException e){
+            //the parser can't be told to stop, end the statement and let parse() see the interrupt
+            Thread.currentThread().interrupt();
+            return end = new Token(TokenType.EOF, "", null, 0);
+        }
+    }
+
+    private Token nextToken() throws InterruptedException{
+        if(end != null){
+            return end;
+        }
+
+        Token token = take();
+        if(token.type == TokenType.SEMICOLON || token.type == TokenType.EOF){
+            end = token;
+        }
+        return token;
+    }
+
+    /**
+     * the next token, after reporting the scan errors found in front of it unless it is skipped
+     */
+    private Token take() throws InterruptedException{
+        while(next == batch.tokens().size()){
+            batch = tokens.poll();
+            if(batch == null){
+                //the scanner is behind, hand over what is parsed instead of holding it back while waiting
+                flush();
+                batch = tokens.take();
+            }
+            next = 0;
+            nextError = 0;
+        }
+        List<ScanErrorAt> scanErrors = batch.errors();
+        while(nextError < scanErrors.size() && scanErrors.get(nextError).token() == next){
+            Scanner.ScanError error = scanErrors.get(nextError++).error();
+            if(!skipping){
+                errors.error(error.line, error.message);
+            }
+        }
+        return batch.tokens().get(next++);
+    }
+
+    private void flush() throws InterruptedException{
+        if(Thread.interrupted()){
+            throw new InterruptedException();
+        }
+        if(!parsed.isEmpty()){
+            statements.put(new Statements(parsed, false));
+            parsed = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A string made by + in the Interpreter, kept as the two strings it joins until its characters are needed. Joining is
+ * constant time, so a chain of n + builds its string in linear time instead of copying the growing prefix at every
+ * step. The characters are put together the first time the rope is compared or printed, iteratively so a rope as deep
+ * as a long chain doesn't need the Java stack. Ropes never change, the flat string is cached the way String caches its
+ * hash, so one can be shared between trees and threads
+ */
+final class Rope implements CharSequence {
+
+    //shorter joins are copied right away, a rope node costs more than copying a few characters
+    private static final int MIN_LENGTH = 64;
+
+    //each one a String or a Rope
+    private final CharSequence left;
+    private final CharSequence right;
+    private final int length;
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right, int length){
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    /**
+     * left + right, both Strings or Ropes
+     */
+    static CharSequence concat(CharSequence left, CharSequence right){
+        if(left.length() == 0){
+            return right;
+        }else if(right.length() == 0){
+            return left;
+        }
+
+        int length = left.length() + right.length();
+        if(length < 0){
+            //what String's own + throws
+            throw new OutOfMemoryError("Overflow: String length out of range");
+        }
+        if(length < MIN_LENGTH){
+            return left.toString().concat(right.toString());
+        }
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length(){
+        return length;
+    }
+
+    @Override
+    public char charAt(int index){
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString(){
+        String text = flat;
+        if(text == null){
+            text = flatten();
+            flat = text;
+        }
+        return text;
+    }
+
+    /**
+     * copies the leaves into one array back to front, so the right half of every rope is popped first. Ropes that
+     * were flattened already are copied whole
+     */
+    private String flatten(){
+        char[] chars = new char[length];
+        int end = length;
+
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(left);
+        pending.push(right);
+        while(!pending.isEmpty()){
+            CharSequence part = pending.pop();
+            if(part instanceof Rope rope && rope.flat == null){
+                pending.push(rope.left);
+                pending.push(rope.right);
+            }else {
+                String text = part.toString();
+                end -= text.length();
+                text.getChars(0, text.length(), chars, end);
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,12 @@
+package lox;
+
+//reported where it is caught, never serialized, and Token isn't serializable
+@SuppressWarnings("serial")
+class RuntimeError extends RuntimeException {
+    final Token token;
+
+    RuntimeError(Token token, String message){
+        super(message);
+        this.token = token;
+    }
+}
@@ -1,9 +1,7 @@
 package lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static lox.TokenType.*;
 
@@ -11,37 +9,49 @@ import static lox.TokenType.*;
 
 public class Scanner {
 
-	private final String source;
+	private final CharSequence source;
 	private final List<Token> tokens = new ArrayList<>();
-	private static final Map<String, TokenType> keywords;
 	private int start = 0;
 	private int current = 0;
 	private int line = 1;
 	private int nested_comment;
+	private Token pending;
+	private TokenBuffer buffer;
 
-	static {
-		keywords = new HashMap<>();
-
-		keywords.put("and", AND);
-		keywords.put("class", CLASS);
-		keywords.put("else", ELSE);
-		keywords.put("false", FALSE);
-		keywords.put("for", FOR);
-		keywords.put("fun", FUN);
-		keywords.put("if", IF);
-		keywords.put("nil", NIL);
-		keywords.put("or", OR);
-		keywords.put("print", PRINT);
-		keywords.put("return", RETURN);
-		keywords.put("super", SUPER);
-		keywords.put("this", THIS);
-		keywords.put("true", TRUE);
-		keywords.put("var", VAR);
-		keywords.put("while", WHILE);
-	}
-
-	public Scanner(String source){
+	//only used when scanning a chunk of a bigger source
+	private final int limit;
+	private List<ScanError> deferred;
+	private final Diagnostics diagnostics;
+
+	public Scanner(CharSequence source){
+		this(source, new Diagnostics(System.err));
+	}
+
+	/**
+	 * @param diagnostics where the errors of this run are reported
+	 */
+	Scanner(CharSequence source, Diagnostics diagnostics){
+		this(source, 0, source.length(), 1, diagnostics);
+	}
+
+	/**
+	 * a scanner over part of the source, tokens starting before limit are scanned even if they run past it
+	 * @param from offset of the first character to scan, must be the start of a token or of whitespace
+	 * @param limit offset at which no new token is started
+	 * @param line the line number at from
+	 */
+	Scanner(CharSequence source, int from, int limit, int line){
+		//a chunk's errors are deferred, whoever stitches the chunks reports them
+		this(source, from, limit, line, null);
+	}
+
+	private Scanner(CharSequence source, int from, int limit, int line, Diagnostics diagnostics){
 		this.source = source;
+		this.start = from;
+		this.current = from;
+		this.limit = limit;
+		this.line = line;
+		this.diagnostics = diagnostics;
 	}
 
 	/**
@@ -49,13 +59,80 @@ public class Scanner {
 	 * @return a List of all the tokens read + an EOF token (think of this as a \0 in Strings
 	 */
 	List<Token> scanTokens(){
+		Token token;
+		do{
+			token = nextToken();
+			tokens.add(token);
+		}while(token.type != EOF);
+
+		return tokens;
+	}
+
+	/**
+	 * scans only as far as needed to produce one more token, lets the parser pull tokens lazily
+	 * @return the next token in the source, or an EOF token once every character has been consumed
+	 */
+	Token nextToken(){
 		while(!isAtEnd()){
 			start = current;
 			scanToken();
+
+			if(pending != null){
+				Token token = pending;
+				pending = null;
+				return token;
+			}
 		}
+		return new Token(EOF, "", null, line);
+	}
 
-		tokens.add(new Token(EOF, "", null, line));
-		return tokens;
+	/**
+	 * scans the whole source into a compact struct-of-arrays buffer, no Token or lexeme is allocated
+	 * @return a TokenBuffer holding every token read + an EOF token
+	 */
+	TokenBuffer scanToBuffer(){
+		scanRange();
+		buffer.add(EOF, current, 0, line);
+		return buffer;
+	}
+
+	/**
+	 * scans every token starting between the current position and limit into a buffer, no EOF token is added.
+	 * Errors are kept back instead of reported so the caller can decide whether this scan is the one that counts
+	 * @return the scanned tokens, position() and line() tell where the scan stopped
+	 */
+	TokenBuffer scanChunk(){
+		deferred = new ArrayList<>();
+		return scanRange();
+	}
+
+	/**
+	 * keeps the errors of the following nextToken() calls back in errors() instead of reporting them, so the caller
+	 * knows which token they came before
+	 */
+	void deferErrors(){
+		deferred = new ArrayList<>();
+	}
+
+	private TokenBuffer scanRange(){
+		buffer = new TokenBuffer(source);
+		while(current < limit && !isAtEnd()){
+			start = current;
+			scanToken();
+		}
+		return buffer;
+	}
+
+	int position(){
+		return current;
+	}
+
+	int line(){
+		return line;
+	}
+
+	List<ScanError> errors(){
+		return deferred;
 	}
 
 	private void scanToken(){
@@ -122,7 +199,7 @@ public class Scanner {
 				}else if(isAlpha(c)){
 					identifier();
 				}else {
-					Lox.error(line, "Unexpected character.");
+					error("Unexpected character.");
 				}
 			}
 		}
@@ -133,12 +210,71 @@ public class Scanner {
 			advance();
 		}
 
-		String text = source.substring(start, current);
-		TokenType type = keywords.get(text);
-		if(type==null){
-			type = IDENTIFIER;
+		addToken(keyword(source, start, current - start));
+	}
+
+	/**
+	 * recognises reserved words straight from the source characters, switching on the length and then the
+	 * first character so at most one keyword is compared and nothing is allocated
+	 * @param start offset of the identifier in source
+	 * @param length number of characters in the identifier
+	 * @return the keyword's type, or IDENTIFIER if it is not reserved
+	 */
+	static TokenType keyword(CharSequence source, int start, int length){
+		char c = source.charAt(start);
+
+		switch (length){
+			case 2 -> {
+				switch (c){
+					case 'i' -> {return isKeyword(source, start, "if", IF);}
+					case 'o' -> {return isKeyword(source, start, "or", OR);}
+				}
+			}
+			case 3 -> {
+				switch (c){
+					case 'a' -> {return isKeyword(source, start, "and", AND);}
+					case 'f' -> {
+						return source.charAt(start+1) == 'o' ?
+								isKeyword(source, start, "for", FOR) : isKeyword(source, start, "fun", FUN);
+					}
+					case 'n' -> {return isKeyword(source, start, "nil", NIL);}
+					case 'v' -> {return isKeyword(source, start, "var", VAR);}
+				}
+			}
+			case 4 -> {
+				switch (c){
+					case 'e' -> {return isKeyword(source, start, "else", ELSE);}
+					case 't' -> {
+						return source.charAt(start+1) == 'h' ?
+								isKeyword(source, start, "this", THIS) : isKeyword(source, start, "true", TRUE);
+					}
+				}
+			}
+			case 5 -> {
+				switch (c){
+					case 'c' -> {return isKeyword(source, start, "class", CLASS);}
+					case 'f' -> {return isKeyword(source, start, "false", FALSE);}
+					case 'p' -> {return isKeyword(source, start, "print", PRINT);}
+					case 's' -> {return isKeyword(source, start, "super", SUPER);}
+					case 'w' -> {return isKeyword(source, start, "while", WHILE);}
+				}
+			}
+			case 6 -> {
+				if(c == 'r'){
+					return isKeyword(source, start, "return", RETURN);
+				}
+			}
+		}
+		return IDENTIFIER;
+	}
+
+	private static TokenType isKeyword(CharSequence source, int start, String keyword, TokenType type){
+		for(int i = 0; i < keyword.length(); i++){
+			if(source.charAt(start + i) != keyword.charAt(i)){
+				return IDENTIFIER;
+			}
 		}
-		addToken(type);
+		return type;
 	}
 
 	private boolean isAlpha(char c){
@@ -167,7 +303,7 @@ public class Scanner {
 				advance();
 			}
 		}
-		addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+		addToken(NUMBER);
 	}
 	/**
 	 * Scans a String
@@ -183,14 +319,13 @@ public class Scanner {
 
 		//if we reach the end of the source file before " then there is an error
 		if(isAtEnd()){
-			Lox.error(line, "Unterminated String");
+			error("Unterminated String");
+			return;
 		}
 
 		advance();
 
-		//extracting the string without the ""
-		String value = source.substring(start+1, current-1);
-		addToken(STRING, value);
+		addToken(STRING);
 	}
 
 	/**
@@ -233,17 +368,103 @@ public class Scanner {
 	}
 
 	/**
-	 * adds the current token to the token list
+	 * hands the current token over to nextToken(), or appends it to the buffer when scanning into one
 	 */
-	private void addToken(TokenType type, Object literal){
-		String text = source.substring(start, current);
-		tokens.add(new Token(type, text, literal, line));
-	}
 	private void addToken(TokenType type){
-		addToken(type, null);
+		if(buffer != null){
+			buffer.add(type, start, current - start, line);
+		}else{
+			pending = new Token(type, source, start, current - start, literal(source, type, start, current), line);
+		}
+	}
+
+	/**
+	 * decodes the literal value of a token from its characters in the source
+	 * @param start offset of the token's first character
+	 * @param end offset just past the token's last character
+	 * @return a Double for numbers, the text between the quotes for strings, null for anything else
+	 */
+	static Object literal(CharSequence source, TokenType type, int start, int end){
+		switch (type){
+			case NUMBER -> {return number(source, start, end);}
+			//extracting the string without the ""
+			case STRING -> {return source.subSequence(start+1, end-1).toString();}
+			default -> {return null;}
+		}
 	}
 
 
+	//every power of ten up to 10^22 is exactly representable as a double
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long MAX_EXACT = 1L << 53;
+
+	/**
+	 * decodes a number literal (digits with an optional fraction) straight from the source.
+	 * When the digits fit in 53 bits and there are at most 22 of them after the point, both the digits and the
+	 * power of ten are exact doubles, and a single division is correctly rounded. Anything else goes to parseDouble
+	 * @param start offset of the first digit
+	 * @param end offset just past the last digit
+	 */
+	static double number(CharSequence source, int start, int end){
+		int point = end;
+		for(int i = start; i < end; i++){
+			if(source.charAt(i) == '.'){
+				point = i;
+				break;
+			}
+		}
+
+		//trailing zeros of the fraction do not change the value
+		int last = end;
+		if(point < end){
+			while(last > point + 1 && source.charAt(last - 1) == '0'){
+				last--;
+			}
+		}
+
+		long digits = 0;
+		for(int i = start; i < last; i++){
+			char c = source.charAt(i);
+			if(c == '.'){
+				continue;
+			}
+			digits = digits * 10 + (c - '0');
+			if(digits >= MAX_EXACT){
+				return Double.parseDouble(source.subSequence(start, end).toString());
+			}
+		}
+
+		int fraction = point < last ? last - point - 1 : 0;
+		if(fraction >= POWERS_OF_TEN.length){
+			return Double.parseDouble(source.subSequence(start, end).toString());
+		}
+		return digits / POWERS_OF_TEN[fraction];
+	}
+
+	private void error(String message){
+		if(deferred != null){
+			deferred.add(new ScanError(line, message));
+		}else{
+			diagnostics.error(line, message);
+		}
+	}
+
+	/**
+	 * an error found while scanning a chunk, held until the chunk is known to be scanned from a real token start
+	 */
+	static class ScanError {
+		final int line;
+		final String message;
+
+		ScanError(int line, String message){
+			this.line = line;
+			this.message = message;
+		}
+	}
+
 	private boolean isAtEnd(){
 		return current >= source.length();
 	}
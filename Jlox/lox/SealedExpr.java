@@ -0,0 +1,59 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * Expr as a sealed interface of records, for pattern matching instead of double dispatch.
+ * Generated by GenerateAst --sealed
+ */
+sealed interface SealedExpr {
+
+	record Binary(SealedExpr left, Token operator, SealedExpr right) implements SealedExpr {}
+	record Ternary(SealedExpr condition, Token first, SealedExpr left, Token second, SealedExpr right) implements SealedExpr {}
+	record Grouping(SealedExpr expression) implements SealedExpr {}
+	record Unary(Token operator, SealedExpr right) implements SealedExpr {}
+	record Literal(Object value) implements SealedExpr {}
+
+	final class TreeBuilder implements Expr.Builder {
+		private SealedExpr[] stack = new SealedExpr[16];
+		private int size;
+
+		@Override
+		public int binary(int left, Token operator, int right){
+			return push(new Binary(stack[left], operator, stack[right]), left);
+		}
+
+		@Override
+		public int ternary(int condition, Token first, int left, Token second, int right){
+			return push(new Ternary(stack[condition], first, stack[left], second, stack[right]), condition);
+		}
+
+		@Override
+		public int grouping(int expression){
+			return push(new Grouping(stack[expression]), expression);
+		}
+
+		@Override
+		public int unary(Token operator, int right){
+			return push(new Unary(operator, stack[right]), right);
+		}
+
+		@Override
+		public int literal(Object value){
+			return push(new Literal(value), size);
+		}
+
+		private int push(SealedExpr node, int handle){
+			if(handle == stack.length){
+				stack = Arrays.copyOf(stack, handle * 2);
+			}
+			stack[handle] = node;
+			size = handle + 1;
+			return handle;
+		}
+
+		SealedExpr get(int handle){
+			return stack[handle];
+		}
+	}
+}
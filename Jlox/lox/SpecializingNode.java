@@ -0,0 +1,464 @@
+package lox;
+
+/**
+ * Executable tree that rewrites itself from type feedback. Binary nodes start out uninitialized, look at the operand
+ * types of their first execution and replace themselves in their parent with a node specialized for those types:
+ * numbers, strings or the generic fallback. When a specialized node's guard fails it deoptimizes, replacing itself
+ * with the generic node for good, so a node that sees mixed types can't keep rewriting itself
+ */
+abstract class SpecializingNode {
+
+    SpecializingNode parent;
+
+    abstract Object execute();
+
+    /**
+     * the result as a primitive double, nodes that produce numbers override this to skip boxing
+     */
+    double executeNumber() throws UnexpectedResult {
+        return number(execute());
+    }
+
+    static double number(Object value) throws UnexpectedResult {
+        if(value instanceof Double){
+            return (double) value;
+        }
+        throw new UnexpectedResult(value);
+    }
+
+    /**
+     * swaps this node for replacement in the parent, returns replacement
+     */
+    final <T extends SpecializingNode> T replace(T replacement){
+        replacement.parent = parent;
+        parent.replaceChild(this, replacement);
+        return replacement;
+    }
+
+    void replaceChild(SpecializingNode child, SpecializingNode replacement){
+        throw new IllegalStateException("node has no children");
+    }
+
+    final SpecializingNode adopt(SpecializingNode child){
+        child.parent = this;
+        return child;
+    }
+
+    static Root build(Expr expr){
+        return new Root(expr.accept(new Builder()));
+    }
+
+    /**
+     * thrown by executeNumber when the value wasn't a number, carrying the value so it doesn't have to be computed again
+     */
+    //only thrown and caught within one evaluation, never serialized
+    @SuppressWarnings("serial")
+    static final class UnexpectedResult extends Exception {
+        final Object value;
+
+        UnexpectedResult(Object value){
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    /**
+     * holds the top of the tree so the top node has a parent to be replaced in
+     */
+    static final class Root extends SpecializingNode {
+        private SpecializingNode body;
+
+        Root(SpecializingNode body){
+            this.body = adopt(body);
+        }
+
+        @Override
+        Object execute(){
+            return body.execute();
+        }
+
+        @Override
+        void replaceChild(SpecializingNode child, SpecializingNode replacement){
+            body = replacement;
+        }
+    }
+
+    static final class Literal extends SpecializingNode {
+        private final Object value;
+
+        Literal(Object value){
+            this.value = value;
+        }
+
+        @Override
+        Object execute(){
+            return value;
+        }
+    }
+
+    static final class Negate extends SpecializingNode {
+        private SpecializingNode operand;
+        private final Token operator;
+
+        Negate(SpecializingNode operand, Token operator){
+            this.operand = adopt(operand);
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(){
+            return executeNumber();
+        }
+
+        @Override
+        double executeNumber(){
+            try{
+                return -operand.executeNumber();
+            }catch (UnexpectedResult e){
+                throw Interpreter.unaryError(operator);
+            }
+        }
+
+        @Override
+        void replaceChild(SpecializingNode child, SpecializingNode replacement){
+            operand = replacement;
+        }
+    }
+
+    static final class Not extends SpecializingNode {
+        private SpecializingNode operand;
+
+        Not(SpecializingNode operand){
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        Object execute(){
+            return !Interpreter.isTruthy(operand.execute());
+        }
+
+        @Override
+        void replaceChild(SpecializingNode child, SpecializingNode replacement){
+            operand = replacement;
+        }
+    }
+
+    static final class Ternary extends SpecializingNode {
+        private SpecializingNode condition;
+        private SpecializingNode left;
+        private SpecializingNode right;
+
+        Ternary(SpecializingNode condition, SpecializingNode left, SpecializingNode right){
+            this.condition = adopt(condition);
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(){
+            return Interpreter.isTruthy(condition.execute()) ? left.execute() : right.execute();
+        }
+
+        @Override
+        double executeNumber() throws UnexpectedResult {
+            return Interpreter.isTruthy(condition.execute()) ? left.executeNumber() : right.executeNumber();
+        }
+
+        @Override
+        void replaceChild(SpecializingNode child, SpecializingNode replacement){
+            if(condition == child){
+                condition = replacement;
+            }else if(left == child){
+                left = replacement;
+            }else {
+                right = replacement;
+            }
+        }
+    }
+
+    /**
+     * base of the nodes with two operands, which take each other's place as the node specializes
+     */
+    abstract static class Binary extends SpecializingNode {
+        SpecializingNode left;
+        SpecializingNode right;
+        final Token operator;
+
+        Binary(SpecializingNode left, SpecializingNode right, Token operator){
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.operator = operator;
+        }
+
+        @Override
+        void replaceChild(SpecializingNode child, SpecializingNode replacement){
+            if(left == child){
+                left = replacement;
+            }else {
+                right = replacement;
+            }
+        }
+
+        /**
+         * the slow path, evaluates the operator on operands of any type
+         */
+        final Object generic(Object l, Object r){
+            Object value = Interpreter.binary(operator.type, l, r);
+            if(value == Interpreter.INVALID_OPERANDS){
+                throw Interpreter.binaryError(operator);
+            }
+            return value;
+        }
+
+        /**
+         * replaces this node with the generic one after a guard failed, and finishes the execution there
+         */
+        final Object deoptimize(Object l, Object r){
+            return replace(new Generic(left, right, operator)).generic(l, r);
+        }
+    }
+
+    static final class Comma extends Binary {
+        Comma(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        Object execute(){
+            left.execute();
+            return right.execute();
+        }
+
+        @Override
+        double executeNumber() throws UnexpectedResult {
+            left.execute();
+            return right.executeNumber();
+        }
+    }
+
+    static final class Equality extends Binary {
+        private final boolean equal;
+
+        Equality(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+            equal = operator.type == TokenType.EQUAL_EQUAL;
+        }
+
+        @Override
+        Object execute(){
+            return Interpreter.isEqual(left.execute(), right.execute()) == equal;
+        }
+    }
+
+    /**
+     * and / or, the right operand only runs when the left one doesn't decide the result
+     */
+    static final class Logical extends Binary {
+        private final boolean and;
+
+        Logical(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+            and = operator.type == TokenType.AND;
+        }
+
+        @Override
+        Object execute(){
+            Object l = left.execute();
+            return Interpreter.isTruthy(l) == and ? right.execute() : l;
+        }
+    }
+
+    /**
+     * has not run yet, its first execution decides what it turns into
+     */
+    static final class Uninitialized extends Binary {
+        Uninitialized(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        Object execute(){
+            Object l = left.execute();
+            Object r = right.execute();
+            return specialize(l, r).generic(l, r);
+        }
+
+        private Binary specialize(Object l, Object r){
+            if(l instanceof Double && r instanceof Double){
+                switch (operator.type){
+                    case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                        return replace(new NumberComparison(left, right, operator));
+                    }
+                    default -> {return replace(new NumberArithmetic(left, right, operator));}
+                }
+            }
+            if(operator.type == TokenType.PLUS && l instanceof CharSequence && r instanceof CharSequence){
+                return replace(new StringConcat(left, right, operator));
+            }
+            return replace(new Generic(left, right, operator));
+        }
+    }
+
+    /**
+     * + - * / on two numbers
+     */
+    static final class NumberArithmetic extends Binary {
+        NumberArithmetic(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        Object execute(){
+            try{
+                return executeNumber();
+            }catch (UnexpectedResult e){
+                return e.value;
+            }
+        }
+
+        @Override
+        double executeNumber() throws UnexpectedResult {
+            double l;
+            try{
+                l = left.executeNumber();
+            }catch (UnexpectedResult e){
+                return number(deoptimize(e.value, right.execute()));
+            }
+            double r;
+            try{
+                r = right.executeNumber();
+            }catch (UnexpectedResult e){
+                return number(deoptimize(l, e.value));
+            }
+
+            switch (operator.type){
+                case PLUS -> {return l + r;}
+                case MINUS -> {return l - r;}
+                case STAR -> {return l * r;}
+                default -> {return l / r;}
+            }
+        }
+    }
+
+    /**
+     * > >= < <= on two numbers
+     */
+    static final class NumberComparison extends Binary {
+        NumberComparison(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        Object execute(){
+            double l;
+            try{
+                l = left.executeNumber();
+            }catch (UnexpectedResult e){
+                return deoptimize(e.value, right.execute());
+            }
+            double r;
+            try{
+                r = right.executeNumber();
+            }catch (UnexpectedResult e){
+                return deoptimize(l, e.value);
+            }
+            return Interpreter.compare(operator.type, l, r);
+        }
+    }
+
+    /**
+     * + on two strings, joined into a Rope like the Interpreter does
+     */
+    static final class StringConcat extends Binary {
+        StringConcat(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        Object execute(){
+            Object l = left.execute();
+            Object r = right.execute();
+            if(l instanceof CharSequence && r instanceof CharSequence){
+                return Rope.concat((CharSequence) l, (CharSequence) r);
+            }
+            return deoptimize(l, r);
+        }
+    }
+
+    /**
+     * seen operands it wasn't specialized for, checks the types on every execution like the Interpreter does
+     */
+    static final class Generic extends Binary {
+        Generic(SpecializingNode left, SpecializingNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        Object execute(){
+            return generic(left.execute(), right.execute());
+        }
+    }
+
+    /**
+     * turns an Expr into uninitialized nodes, groupings only decide the shape of the tree so they are dropped
+     */
+    private static final class Builder implements Expr.Visitor<SpecializingNode> {
+
+        @Override
+        public SpecializingNode visitBinaryExpr(Expr.Binary expr){
+            SpecializingNode left = expr.left.accept(this);
+            SpecializingNode right = expr.right.accept(this);
+            switch (expr.operator.type){
+                case COMMA -> {return new Comma(left, right, expr.operator);}
+                case EQUAL_EQUAL, BANG_EQUAL -> {return new Equality(left, right, expr.operator);}
+                case AND, OR -> {return new Logical(left, right, expr.operator);}
+                default -> {return new Uninitialized(left, right, expr.operator);}
+            }
+        }
+
+        @Override
+        public SpecializingNode visitTernaryExpr(Expr.Ternary expr){
+            return new Ternary(expr.condition.accept(this), expr.left.accept(this), expr.right.accept(this));
+        }
+
+        @Override
+        public SpecializingNode visitGroupingExpr(Expr.Grouping expr){
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public SpecializingNode visitUnaryExpr(Expr.Unary expr){
+            SpecializingNode right = expr.right.accept(this);
+            if(expr.operator.type == TokenType.MINUS){
+                return new Negate(right, expr.operator);
+            }
+            return new Not(right);
+        }
+
+        @Override
+        public SpecializingNode visitLiteralExpr(Expr.Literal expr){
+            return new Literal(expr.value);
+        }
+
+        @Override
+        public SpecializingNode BinaryRPN(Expr.Binary expr){
+            return visitBinaryExpr(expr);
+        }
+        @Override
+        public SpecializingNode TernaryRPN(Expr.Ternary expr){
+            return visitTernaryExpr(expr);
+        }
+        @Override
+        public SpecializingNode GroupingRPN(Expr.Grouping expr){
+            return visitGroupingExpr(expr);
+        }
+        @Override
+        public SpecializingNode UnaryRPN(Expr.Unary expr){
+            return visitUnaryExpr(expr);
+        }
+        @Override
+        public SpecializingNode LiteralRPN(Expr.Literal expr){
+            return visitLiteralExpr(expr);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates an Expr with explicit work and value stacks instead of recursion, so trees nested far deeper than the
+ * Java stack allows still evaluate, in time linear in their size. Operands are evaluated left to right and type
+ * checked afterwards. Ternaries only ever push the branch they take and and / or only push their right operand when
+ * the left one doesn't decide them, exactly like the Interpreter
+ */
+class StackEvaluator {
+
+    //a node is pushed to be entered, and operators again to be applied once their operands are on the value stack
+    private static final byte ENTER = 0;
+    private static final byte APPLY = 1;
+
+    private Expr[] nodes = new Expr[64];
+    private byte[] states = new byte[64];
+    private int pending;
+
+    private Object[] values = new Object[64];
+    private int size;
+
+    Object evaluate(Expr root){
+        //a runtime error leaves the stacks as they were when it was thrown
+        Arrays.fill(nodes, 0, pending, null);
+        Arrays.fill(values, 0, size, null);
+        pending = 0;
+        size = 0;
+        schedule(root, ENTER);
+
+        while(pending > 0){
+            pending--;
+            Expr expr = nodes[pending];
+            byte state = states[pending];
+            nodes[pending] = null;
+
+            if(expr instanceof Expr.Literal literal){
+                push(literal.value);
+            }else if(expr instanceof Expr.Grouping grouping){
+                schedule(grouping.expression, ENTER);
+            }else if(expr instanceof Expr.Binary binary){
+                TokenType operator = binary.operator.type;
+                if(state == ENTER){
+                    schedule(binary, APPLY);
+                    //the right operand of a comma, and or or waits until the left one has a value
+                    if(operator != TokenType.COMMA && !Interpreter.isLogical(operator)){
+                        schedule(binary.right, ENTER);
+                    }
+                    schedule(binary.left, ENTER);
+                }else if(operator == TokenType.COMMA){
+                    pop();
+                    schedule(binary.right, ENTER);
+                }else if(Interpreter.isLogical(operator)){
+                    //a deciding left value stays on the stack as the result
+                    if(!Interpreter.shortCircuits(operator, values[size - 1])){
+                        pop();
+                        schedule(binary.right, ENTER);
+                    }
+                }else {
+                    Object right = pop();
+                    Object left = pop();
+                    Object value = Interpreter.binary(operator, left, right);
+                    if(value == Interpreter.INVALID_OPERANDS){
+                        throw Interpreter.binaryError(binary.operator);
+                    }
+                    push(value);
+                }
+            }else if(expr instanceof Expr.Unary unary){
+                if(state == ENTER){
+                    schedule(unary, APPLY);
+                    schedule(unary.right, ENTER);
+                }else {
+                    Object value = Interpreter.unary(unary.operator.type, pop());
+                    if(value == Interpreter.INVALID_OPERANDS){
+                        throw Interpreter.unaryError(unary.operator);
+                    }
+                    push(value);
+                }
+            }else if(expr instanceof Expr.Ternary ternary){
+                if(state == ENTER){
+                    schedule(ternary, APPLY);
+                    schedule(ternary.condition, ENTER);
+                }else {
+                    //the branch's value takes the condition's place
+                    schedule(Interpreter.isTruthy(pop()) ? ternary.left : ternary.right, ENTER);
+                }
+            }
+        }
+
+        Object value = values[0];
+        values[0] = null;
+        return value;
+    }
+
+    private void schedule(Expr expr, byte state){
+        if(pending == nodes.length){
+            nodes = Arrays.copyOf(nodes, pending * 2);
+            states = Arrays.copyOf(states, pending * 2);
+        }
+        nodes[pending] = expr;
+        states[pending] = state;
+        pending++;
+    }
+
+    private void push(Object value){
+        if(size == values.length){
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    private Object pop(){
+        Object value = values[--size];
+        values[size] = null;
+        return value;
+    }
+}
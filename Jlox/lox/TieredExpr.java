@@ -0,0 +1,55 @@
+package lox;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * An Expr that is evaluated by the Interpreter until it has been evaluated threshold times, then by a hidden class
+ * from JvmCompiler. Trees the compiler can't type stay with the Interpreter for good, so the Interpreter is always
+ * the fallback
+ */
+final class TieredExpr {
+
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    private final Expr expr;
+    private final Interpreter interpreter;
+    private final int threshold;
+
+    private int evaluations;
+    private boolean interpretOnly;
+    private MethodHandle compiled;
+
+    TieredExpr(Expr expr, Interpreter interpreter){
+        this(expr, interpreter, DEFAULT_THRESHOLD);
+    }
+
+    TieredExpr(Expr expr, Interpreter interpreter, int threshold){
+        this.expr = expr;
+        this.interpreter = interpreter;
+        this.threshold = threshold;
+    }
+
+    Object evaluate(){
+        if(compiled != null){
+            try{
+                return (Object) compiled.invokeExact();
+            }catch (Throwable e){
+                //the compiled code only does arithmetic on values it already knows the type of
+                throw new IllegalStateException(e);
+            }
+        }
+
+        if(!interpretOnly && evaluations++ >= threshold){
+            compiled = JvmCompiler.compile(expr);
+            interpretOnly = compiled == null;
+            if(compiled != null){
+                return evaluate();
+            }
+        }
+        return expr.accept(interpreter);
+    }
+
+    boolean isCompiled(){
+        return compiled != null;
+    }
+}
@@ -3,19 +3,43 @@ package lox;
 public class Token {
 
 	final TokenType type;
-	final String lexeme;
 	final Object literal;
 	final int line;
 
+	//the lexeme is only cut out of the source the first time someone asks for it
+	private String lexeme;
+	private final CharSequence source;
+	private final int start;
+	private final int length;
+
 	Token(TokenType type, String lexeme, Object literal, int line){
+		this(type, null, 0, 0, literal, line);
+		this.lexeme = lexeme;
+	}
+
+	/**
+	 * a token whose lexeme is still a slice of the source
+	 * @param start offset of the first character of the lexeme in source
+	 * @param length number of characters in the lexeme
+	 */
+	Token(TokenType type, CharSequence source, int start, int length, Object literal, int line){
 		this.type = type;
-		this. lexeme = lexeme;
+		this.source = source;
+		this.start = start;
+		this.length = length;
 		this.literal = literal;
 		this.line = line;
 	}
 
+	String lexeme(){
+		if(lexeme == null){
+			lexeme = source.subSequence(start, start + length).toString();
+		}
+		return lexeme;
+	}
+
 	public String toString(){
-		return type+ " "+ lexeme+ " "+ literal;
+		return type+ " "+ lexeme()+ " "+ literal;
 	}
 
 }
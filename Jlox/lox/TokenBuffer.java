@@ -0,0 +1,99 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays storage for scanned tokens: one slot in a few parallel primitive arrays per token
+ * instead of a Token object + lexeme String. Lexemes and literals are only cut out of the source on demand
+ */
+class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private byte[] types = new byte[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int[] lines = new int[64];
+    private int size;
+
+    TokenBuffer(CharSequence source){
+        this.source = source;
+    }
+
+    void add(TokenType type, int start, int length, int line){
+        ensureCapacity(size + 1);
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    /**
+     * copies every token of other to the end of this buffer
+     * @param lineOffset added to the line of each copied token
+     */
+    void append(TokenBuffer other, int lineOffset){
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.lengths, 0, lengths, size, other.size);
+        for(int i = 0; i < other.size; i++){
+            lines[size + i] = other.lines[i] + lineOffset;
+        }
+        size += other.size;
+    }
+
+    private void ensureCapacity(int capacity){
+        if(capacity > types.length){
+            capacity = Math.max(capacity, types.length * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+    }
+
+    int size(){
+        return size;
+    }
+
+    TokenType type(int index){
+        return TYPES[types[index]];
+    }
+
+    int line(int index){
+        return lines[index];
+    }
+
+    String lexeme(int index){
+        return source.subSequence(starts[index], starts[index] + lengths[index]).toString();
+    }
+
+    Object literal(int index){
+        return Scanner.literal(source, type(index), starts[index], starts[index] + lengths[index]);
+    }
+
+    /**
+     * @return a Token view of the slot, its lexeme stays lazy
+     */
+    Token token(int index){
+        return new Token(type(index), source, starts[index], lengths[index], literal(index), lines[index]);
+    }
+
+    /**
+     * @return a stream over the buffered tokens the Parser can pull from
+     */
+    TokenStream stream(){
+        return new TokenStream(new TokenStream.Source() {
+            private int next = 0;
+
+            @Override
+            public Token nextToken(){
+                //the last slot is always EOF, keep handing it out once we get there
+                return token(next < size - 1 ? next++ : next);
+            }
+        });
+    }
+}
@@ -0,0 +1,75 @@
+package lox;
+
+/**
+ * Lazy token source for the Parser, tokens are pulled out of the Scanner only when the parser asks for them.
+ * Only a small ring buffer of lookahead tokens is ever held, so memory does not grow with the size of the source
+ */
+class TokenStream {
+
+    /**
+     * anything tokens can be pulled from one at a time, an EOF token ends the stream
+     */
+    interface Source {
+        Token nextToken();
+    }
+
+    private final Source source;
+    private final Token[] window;
+    private int head;
+    private int size;
+
+    TokenStream(Scanner scanner){
+        this(scanner::nextToken, 2);
+    }
+
+    TokenStream(Source source){
+        this(source, 2);
+    }
+
+    /**
+     * @param source where to pull tokens from
+     * @param lookahead how many tokens past the current one can be peeked at
+     */
+    TokenStream(Source source, int lookahead){
+        this.source = source;
+        this.window = new Token[lookahead];
+    }
+
+    /**
+     * @return the current token without consuming it
+     */
+    Token peek(){
+        return peek(0);
+    }
+
+    /**
+     * @param ahead how far past the current token to look, 0 being the current token
+     * @return the token at that position, EOF tokens repeat once the source is exhausted
+     */
+    Token peek(int ahead){
+        if(ahead >= window.length){
+            throw new IllegalArgumentException("lookahead is bounded to " + window.length + " tokens");
+        }
+
+        while(size <= ahead){
+            Token last = size == 0 ? null : window[(head + size - 1) % window.length];
+            window[(head + size) % window.length] =
+                    last != null && last.type == TokenType.EOF ? last : source.nextToken();
+            size++;
+        }
+        return window[(head + ahead) % window.length];
+    }
+
+    /**
+     * @return the current token, and consumes it. EOF is never consumed
+     */
+    Token advance(){
+        Token token = peek(0);
+        if(token.type != TokenType.EOF){
+            window[head] = null;
+            head = (head + 1) % window.length;
+            size--;
+        }
+        return token;
+    }
+}
@@ -0,0 +1,91 @@
+package lox;
+
+/**
+ * Stack machine running the Chunks made by BytecodeCompiler. Values and errors are exactly the Interpreter's
+ */
+class VM {
+
+    Object run(Chunk chunk){
+        int[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        Object[] stack = new Object[chunk.maxStack];
+        int top = 0;
+        int ip = 0;
+
+        while(true){
+            switch (code[ip++]){
+                case Chunk.CONSTANT -> stack[top++] = constants[code[ip++]];
+                case Chunk.ADD -> {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if(left instanceof Double && right instanceof Double){
+                        stack[top - 1] = (double) left + (double) right;
+                    }else if(left instanceof String && right instanceof String){
+                        stack[top - 1] = (String) left + (String) right;
+                    }else{
+                        throw Interpreter.binaryError(chunk.tokens[code[ip]]);
+                    }
+                    ip++;
+                }
+                case Chunk.SUBTRACT, Chunk.MULTIPLY, Chunk.DIVIDE,
+                        Chunk.GREATER, Chunk.GREATER_EQUAL, Chunk.LESS, Chunk.LESS_EQUAL -> {
+                    int instruction = code[ip - 1];
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if(!(left instanceof Double) || !(right instanceof Double)){
+                        throw Interpreter.binaryError(chunk.tokens[code[ip]]);
+                    }
+                    ip++;
+
+                    double l = (double) left;
+                    double r = (double) right;
+                    stack[top - 1] = switch (instruction){
+                        case Chunk.SUBTRACT -> l - r;
+                        case Chunk.MULTIPLY -> l * r;
+                        case Chunk.DIVIDE -> l / r;
+                        case Chunk.GREATER -> l > r;
+                        case Chunk.GREATER_EQUAL -> l >= r;
+                        case Chunk.LESS -> l < r;
+                        default -> l <= r;
+                    };
+                }
+                case Chunk.EQUAL -> {
+                    Object right = stack[--top];
+                    stack[top - 1] = Interpreter.isEqual(stack[top - 1], right);
+                }
+                case Chunk.NOT_EQUAL -> {
+                    Object right = stack[--top];
+                    stack[top - 1] = !Interpreter.isEqual(stack[top - 1], right);
+                }
+                case Chunk.NEGATE -> {
+                    if(!(stack[top - 1] instanceof Double)){
+                        throw Interpreter.unaryError(chunk.tokens[code[ip]]);
+                    }
+                    ip++;
+                    stack[top - 1] = -(double) stack[top - 1];
+                }
+                case Chunk.NOT -> stack[top - 1] = !Interpreter.isTruthy(stack[top - 1]);
+                case Chunk.POP -> top--;
+                case Chunk.JUMP_IF_FALSE -> {
+                    if(Interpreter.isTruthy(stack[--top])){
+                        ip++;
+                    }else{
+                        ip = code[ip];
+                    }
+                }
+                case Chunk.JUMP -> ip = code[ip];
+                case Chunk.JUMP_IF_FALSE_OR_POP, Chunk.JUMP_IF_TRUE_OR_POP -> {
+                    boolean jumpIfTruthy = code[ip - 1] == Chunk.JUMP_IF_TRUE_OR_POP;
+                    if(Interpreter.isTruthy(stack[top - 1]) == jumpIfTruthy){
+                        ip = code[ip];
+                    }else{
+                        top--;
+                        ip++;
+                    }
+                }
+                case Chunk.RETURN -> {return stack[--top];}
+                default -> throw new IllegalStateException("unknown instruction " + code[ip - 1]);
+            }
+        }
+    }
+}
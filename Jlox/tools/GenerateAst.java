@@ -11,19 +11,26 @@ import java.util.Locale;
 public class GenerateAst {
     public static void main(String[] args) throws IOException{
 
-        if(args.length != 1){
-            System.out.println("Usage: generate_tree <output directory>");
+        String mode = args.length == 2 ? args[0] : "";
+        if(args.length != 1 && !mode.equals("--arena") && !mode.equals("--sealed")){
+            System.out.println("Usage: generate_tree [--arena | --sealed] <output directory>");
             System.exit(64);
         }
 
-        String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
+        String outputDir = args[args.length - 1];
+        List<String> types = Arrays.asList(
                 "Binary   : Expr left, Token operator, Expr right",
                 "Ternary : Expr condition, Token first, Expr left, Token second, Expr right",
                 "Grouping : Expr expression",
                 "Unary    : Token operator, Expr right",
                 "Literal  : Object value"
-        ));
+        );
+
+        switch (mode){
+            case "--arena" -> defineArena(outputDir, "Expr", types);
+            case "--sealed" -> defineSealed(outputDir, "Expr", types);
+            default -> defineAst(outputDir, "Expr", types);
+        }
     }
 
     private static void defineAst(String outputDir, String Expr, List<String> types) throws IOException{
@@ -31,6 +38,7 @@ public class GenerateAst {
         PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8);
 
         writer.println("package lox;\n");
+        writer.println("import java.util.Arrays;");
         writer.println("import java.util.List;\n");
         writer.println("abstract class "+Expr+" {\n");
 
@@ -46,10 +54,330 @@ public class GenerateAst {
         writer.println("\n\tabstract <R> R accept(Visitor<R> visitor);");
         writer.println("\tabstract <R> R RPN(Visitor<R> visitor);");
 
+        defineBuilder(writer, Expr, types);
+        defineTreeBuilder(writer, Expr, types);
+
         writer.println("\n}");
         writer.close();
     }
 
+    /**
+     * the interface the parser hands nodes to, bottom up. Nodes are referred to by the int handle the builder
+     * returned for them, so a builder is free to make objects, fill arrays or share nodes
+     */
+    private static void defineBuilder(PrintWriter writer, String Expr, List<String> types){
+        writer.println("\n\tinterface Builder {");
+
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            writer.println("\t\tint "+typeName.toLowerCase()+"("+handles(Expr, type.split(":")[1].trim())+");");
+        }
+
+        writer.println("\t}");
+    }
+
+    /**
+     * builds the tree of objects, handles are positions on a stack holding the nodes whose parent isn't built yet.
+     * The parser always builds a node's children right before the node, so they are on top of the stack
+     */
+    private static void defineTreeBuilder(PrintWriter writer, String Expr, List<String> types){
+        writer.println("\n\tstatic class TreeBuilder implements Builder {");
+        writer.println("\t\tprivate "+Expr+"[] stack = new "+Expr+"[16];");
+        writer.println("\t\tprivate int size;\n");
+
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            String fields = type.split(":")[1].trim();
+
+            String arguments = "";
+            String first = "size";
+            for(String field : fields.split(", ")){
+                String line[] = field.split(" ");
+                if(line[0].equals(Expr)){
+                    arguments += "stack["+line[1]+"], ";
+                    if(first.equals("size")){
+                        first = line[1];
+                    }
+                }else{
+                    arguments += line[1]+", ";
+                }
+            }
+            arguments = arguments.substring(0, arguments.length()-2);
+
+            writer.println("\t\t@Override");
+            writer.println("\t\tpublic int "+typeName.toLowerCase()+"("+handles(Expr, fields)+"){");
+            writer.println("\t\treturn push(new "+typeName+"("+arguments+"), "+first+");\n}");
+        }
+
+        writer.println("\t\tprivate int push("+Expr+" node, int handle){");
+        writer.println("\t\tif(handle == stack.length){");
+        writer.println("\t\tstack = Arrays.copyOf(stack, handle * 2);");
+        writer.println("\t\t}");
+        writer.println("\t\tstack[handle] = node;");
+        writer.println("\t\tsize = handle + 1;");
+        writer.println("\t\treturn handle;\n}");
+
+        writer.println("\t\t"+Expr+" get(int handle){");
+        writer.println("\t\treturn stack[handle];\n}");
+        writer.println("\t}");
+    }
+
+    /**
+     * @return the fields of a node with every child node replaced by an int handle
+     */
+    private static String handles(String Expr, String fields){
+        String result = "";
+        for(String field : fields.split(", ")){
+            String line[] = field.split(" ");
+            result += (line[0].equals(Expr) ? "int" : line[0])+" "+line[1]+", ";
+        }
+        return result.substring(0, result.length()-2);
+    }
+
+    /**
+     * the flat version of the tree: one slot per node in a few primitive arrays. Child nodes are indices into the
+     * same arrays, tokens are kept as their type and line, other fields go to a shared values table
+     */
+    private static void defineArena(String outputDir, String Expr, List<String> types) throws IOException{
+        String arena = Expr+"Arena";
+        String path = outputDir+"/"+arena+".java";
+        PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8);
+
+        //how many child and token slots the largest node needs
+        int children = 0;
+        int tokens = 0;
+        for(String type : types){
+            int nodes = 0;
+            int operators = 0;
+            for(String field : type.split(":")[1].trim().split(", ")){
+                if(field.split(" ")[0].equals("Token")){
+                    operators++;
+                }else{
+                    nodes++;
+                }
+            }
+            children = Math.max(children, nodes);
+            tokens = Math.max(tokens, operators);
+        }
+
+        writer.println("package lox;\n");
+        writer.println("import java.util.Arrays;\n");
+        writer.println("/**");
+        writer.println(" * Flat "+Expr+" tree: node kinds, child indices and token types/lines live in primitive arrays,");
+        writer.println(" * literal values in one shared table. Generated by GenerateAst --arena");
+        writer.println(" */");
+        writer.println("final class "+arena+" implements "+Expr+".Builder {\n");
+
+        for(int i = 0; i < types.size(); i++){
+            String typeName = types.get(i).split(":")[0].trim();
+            writer.println("\tstatic final byte "+typeName.toUpperCase()+" = "+i+";");
+        }
+        writer.println("\n\tprivate static final int CHILDREN = "+children+";");
+        writer.println("\tprivate static final int TOKENS = "+tokens+";");
+        writer.println("\tprivate static final TokenType[] TYPES = TokenType.values();\n");
+
+        writer.println("\tprivate byte[] kinds = new byte[64];");
+        writer.println("\tprivate int[] children = new int[64 * CHILDREN];");
+        writer.println("\tprivate byte[] types = new byte[64 * TOKENS];");
+        writer.println("\tprivate int[] lines = new int[64 * TOKENS];");
+        writer.println("\tprivate Object[] values = new Object[16];");
+        writer.println("\t//operators always have the same lexeme, so one is kept per token type");
+        writer.println("\tprivate final String[] lexemes = new String[TYPES.length];");
+        writer.println("\tprivate int size;");
+        writer.println("\tprivate int valueCount;\n");
+
+        defineArenaVisitor(writer, Expr, types);
+
+        //builder methods
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            String fields = type.split(":")[1].trim();
+
+            writer.println("\t@Override");
+            writer.println("\tpublic int "+typeName.toLowerCase()+"("+handles(Expr, fields)+"){");
+            writer.println("\t\tint node = add("+typeName.toUpperCase()+");");
+            int child = 0;
+            int token = 0;
+            for(String field : fields.split(", ")){
+                String line[] = field.split(" ");
+                if(line[0].equals(Expr)){
+                    writer.println("\t\tchildren[node * CHILDREN + "+(child++)+"] = "+line[1]+";");
+                }else if(line[0].equals("Token")){
+                    writer.println("\t\tsetToken(node * TOKENS + "+(token++)+", "+line[1]+");");
+                }else{
+                    writer.println("\t\tchildren[node * CHILDREN + "+(child++)+"] = addValue("+line[1]+");");
+                }
+            }
+            writer.println("\t\treturn node;");
+            writer.println("\t}\n");
+        }
+
+        //accessors
+        writer.println("\tint size(){");
+        writer.println("\t\treturn size;");
+        writer.println("\t}\n");
+        writer.println("\tbyte kind(int node){");
+        writer.println("\t\treturn kinds[node];");
+        writer.println("\t}\n");
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            int child = 0;
+            int token = 0;
+            for(String field : type.split(":")[1].trim().split(", ")){
+                String line[] = field.split(" ");
+                String name = typeName.toLowerCase()+Character.toUpperCase(line[1].charAt(0))+line[1].substring(1);
+                if(line[0].equals(Expr)){
+                    writer.println("\tint "+name+"(int node){");
+                    writer.println("\t\treturn children[node * CHILDREN + "+(child++)+"];");
+                }else if(line[0].equals("Token")){
+                    writer.println("\tTokenType "+name+"Type(int node){");
+                    writer.println("\t\treturn TYPES[types[node * TOKENS + "+token+"]];");
+                    writer.println("\t}\n");
+                    writer.println("\tToken "+name+"(int node){");
+                    writer.println("\t\treturn token(node * TOKENS + "+(token++)+");");
+                }else{
+                    //values already holds Objects, casting to Object would only be a lint warning
+                    String cast = line[0].equals("Object") ? "" : "("+line[0]+") ";
+                    writer.println("\t"+line[0]+" "+name+"(int node){");
+                    writer.println("\t\treturn "+cast+"values[children[node * CHILDREN + "+(child++)+"]];");
+                }
+                writer.println("\t}\n");
+            }
+        }
+
+        //dispatch
+        for(String method : new String[]{"accept", "RPN"}){
+            writer.println("\t<R> R "+method+"(int node, Visitor<R> visitor){");
+            writer.println("\t\tswitch (kinds[node]){");
+            for(String type : types){
+                String typeName = type.split(":")[0].trim();
+                String target = method.equals("accept") ? "visit"+typeName+"Node" : typeName+"NodeRPN";
+                writer.println("\t\t\tcase "+typeName.toUpperCase()+" -> {return visitor."+target+"(this, node);}");
+            }
+            writer.println("\t\t}");
+            writer.println("\t\tthrow new IllegalStateException(\"unknown node kind \" + kinds[node]);");
+            writer.println("\t}\n");
+        }
+
+        //storage
+        writer.println("\tprivate int add(byte kind){");
+        writer.println("\t\tif(size == kinds.length){");
+        writer.println("\t\t\tint capacity = size * 2;");
+        writer.println("\t\t\tkinds = Arrays.copyOf(kinds, capacity);");
+        writer.println("\t\t\tchildren = Arrays.copyOf(children, capacity * CHILDREN);");
+        writer.println("\t\t\ttypes = Arrays.copyOf(types, capacity * TOKENS);");
+        writer.println("\t\t\tlines = Arrays.copyOf(lines, capacity * TOKENS);");
+        writer.println("\t\t}");
+        writer.println("\t\tkinds[size] = kind;");
+        writer.println("\t\treturn size++;");
+        writer.println("\t}\n");
+
+        writer.println("\tprivate int addValue(Object value){");
+        writer.println("\t\tif(valueCount == values.length){");
+        writer.println("\t\t\tvalues = Arrays.copyOf(values, valueCount * 2);");
+        writer.println("\t\t}");
+        writer.println("\t\tvalues[valueCount] = value;");
+        writer.println("\t\treturn valueCount++;");
+        writer.println("\t}\n");
+
+        writer.println("\tprivate void setToken(int slot, Token token){");
+        writer.println("\t\ttypes[slot] = (byte) token.type.ordinal();");
+        writer.println("\t\tlines[slot] = token.line;");
+        writer.println("\t\tif(lexemes[token.type.ordinal()] == null){");
+        writer.println("\t\t\tlexemes[token.type.ordinal()] = token.lexeme();");
+        writer.println("\t\t}");
+        writer.println("\t}\n");
+
+        writer.println("\tprivate Token token(int slot){");
+        writer.println("\t\treturn new Token(TYPES[types[slot]], lexemes[types[slot]], null, lines[slot]);");
+        writer.println("\t}");
+
+        writer.println("}");
+        writer.close();
+    }
+
+    /**
+     * the tree as a sealed interface with one record per node type, walked with pattern matching instead of a
+     * Visitor. It gets its own TreeBuilder so the parser can build it directly
+     */
+    private static void defineSealed(String outputDir, String Expr, List<String> types) throws IOException{
+        String sealed = "Sealed"+Expr;
+        String path = outputDir+"/"+sealed+".java";
+        PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8);
+
+        writer.println("package lox;\n");
+        writer.println("import java.util.Arrays;\n");
+        writer.println("/**");
+        writer.println(" * "+Expr+" as a sealed interface of records, for pattern matching instead of double dispatch.");
+        writer.println(" * Generated by GenerateAst --sealed");
+        writer.println(" */");
+        writer.println("sealed interface "+sealed+" {\n");
+
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            String fields = type.split(":")[1].trim();
+            writer.println("\trecord "+typeName+"("+fields.replace(Expr+" ", sealed+" ")+") implements "+sealed+" {}");
+        }
+
+        writer.println("\n\tfinal class TreeBuilder implements "+Expr+".Builder {");
+        writer.println("\t\tprivate "+sealed+"[] stack = new "+sealed+"[16];");
+        writer.println("\t\tprivate int size;\n");
+
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            String fields = type.split(":")[1].trim();
+
+            String arguments = "";
+            String first = "size";
+            for(String field : fields.split(", ")){
+                String line[] = field.split(" ");
+                if(line[0].equals(Expr)){
+                    arguments += "stack["+line[1]+"], ";
+                    if(first.equals("size")){
+                        first = line[1];
+                    }
+                }else{
+                    arguments += line[1]+", ";
+                }
+            }
+            arguments = arguments.substring(0, arguments.length()-2);
+
+            writer.println("\t\t@Override");
+            writer.println("\t\tpublic int "+typeName.toLowerCase()+"("+handles(Expr, fields)+"){");
+            writer.println("\t\t\treturn push(new "+typeName+"("+arguments+"), "+first+");");
+            writer.println("\t\t}\n");
+        }
+
+        writer.println("\t\tprivate int push("+sealed+" node, int handle){");
+        writer.println("\t\t\tif(handle == stack.length){");
+        writer.println("\t\t\t\tstack = Arrays.copyOf(stack, handle * 2);");
+        writer.println("\t\t\t}");
+        writer.println("\t\t\tstack[handle] = node;");
+        writer.println("\t\t\tsize = handle + 1;");
+        writer.println("\t\t\treturn handle;");
+        writer.println("\t\t}\n");
+
+        writer.println("\t\t"+sealed+" get(int handle){");
+        writer.println("\t\t\treturn stack[handle];");
+        writer.println("\t\t}");
+        writer.println("\t}");
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static void defineArenaVisitor(PrintWriter writer, String Expr, List<String> types){
+        writer.println("\tinterface Visitor<R> {");
+
+        for(String type : types){
+            String typeName = type.split(":")[0].trim();
+            writer.println("\t\tR visit"+typeName+"Node("+Expr+"Arena arena, int node);");
+            writer.println("\t\tR "+typeName+"NodeRPN("+Expr+"Arena arena, int node);\n");
+        }
+
+        writer.println("\t}\n");
+    }
+
     private static void defineVisitor(PrintWriter writer, String Expr, List<String> types){
         writer.println("\tinterface Visitor<R> {");
 